@@ -1,42 +1,131 @@
 package projectAgents;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 
 import jade.core.AID;
 import jade.core.Agent;
-import jade.domain.DFService;
-import jade.domain.FIPAException;
-import jade.domain.FIPAAgentManagement.DFAgentDescription;
-import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.FSMBehaviour;
 import jade.core.behaviours.OneShotBehaviour;
 import jade.core.behaviours.SequentialBehaviour;
-import jade.core.behaviours.SimpleBehaviour;
 import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
 
-public class BazaarAgent extends Agent {
+public class BazaarAgent extends Agent implements MarketSnapshot.Query {
 
     private List<AID> activeParticipants;
-    private static final int TOTAL_ROUNDS = 10;
-    private Map<String, Integer> prices = new HashMap<>();
-    private Map<String, Integer> stock = new HashMap<>();
-    private Map<AID, Integer> wallets = new HashMap<>();
+    private static final int TOTAL_ROUNDS = MarketEngine.TOTAL_ROUNDS;
+
+    // With -Dmarket.pipeline=true a merchant gets the next round open as soon as its sale decision is applied,
+    // so its stock report is already buffered when the bazaar opens the next round
+    private static final boolean PIPELINED = Boolean.getBoolean("market.pipeline");
+
+    // Every -Dmarket.stock.snapshot rounds (5 by default, 0 never) the merchants report their whole stock,
+    // in the other rounds only what changed
+    private static final int SNAPSHOT_ROUNDS = Integer.getInteger("market.stock.snapshot", 5);
+    private MarketEngine engine;
+    private final OrderBook orderBook = new OrderBook(16);
+    // Wallets by dense merchant id, the id of a participant is the id of its first merchant for a pool and
+    // the other merchants of a pool have consecutive ids starting at poolLedgerIds.
+    // -Dmarket.standings sets the number of places kept on the board (10 by default).
+    private final MerchantLedger ledger = new MerchantLedger(16,
+            Integer.getInteger("market.standings", MerchantLedger.DEFAULT_TOP));
+    private final Map<AID, Integer> ledgerIds = new HashMap<>();
+    private final Map<AID, Integer> poolLedgerIds = new HashMap<>();
+    private ConversationRouter router;
+    private MarketDirectory directory;
+
+    // A shard only hosts the merchants whose name hashes to its index and gets its prices from the coordinator
+    private int shardIndex = 0;
+    private int shardCount = 1;
+    private AID coordinator;
+
+    // Optional binary journal of every round, enabled with -Dmarket.journal=<file>
+    private RoundJournal journal;
+    private final RoundJournal.Round journalRound = new RoundJournal.Round();
+    private final Map<AID, Integer> merchantIds = new HashMap<>();
+
+    // Phase latencies and traffic of every round, published over JMX
+    private RoundMetrics metrics;
+
+    // Deadlines, default answers and evictions for the merchants that do not reply in time
+    private StragglerPolicy stragglers;
+
+    // Merchants hosted by every MerchantPoolAgent, learned from its first stock report. A pool is one
+    // participant that stands for all of its merchants, each merchant has its own wallet in the ledger.
+    private final Map<AID, AID[]> pools = new HashMap<>();
+
+    // Last known stock of every participant. The market totals are their sum and are only updated with what
+    // changed, a participant whose report was missed is asked for its whole stock in the next round.
+    private final Map<AID, int[]> knownStock = new HashMap<>();
+    private final Set<AID> staleStock = new HashSet<>();
+    private final int[] stockChange = new int[Spice.COUNT];
+
+    // Last published view of the market, swapped after every phase that changes it and read from any thread
+    private final AtomicReference<MarketSnapshot> snapshot = new AtomicReference<>();
 
     @Override
     protected void setup() {
-        System.out.println("BazzarAgent" + getLocalName() + " started");
-        iniciatePrices();
-        initializeStock();
+        MarketLog.info("BazzarAgent" + getLocalName() + " started");
         activeParticipants = new ArrayList<>();
 
-        AID[] participantAgents = findAgentsByService("market");
-        if (participantAgents != null && participantAgents.length > 0) {
-            for (AID participant : participantAgents) {
+        // Optional arguments: [seed] for a standalone market, or shard index, number of shards,
+        // coordinator name [, seed] for a shard. The seed of a shard is only recorded, its events come
+        // from the coordinator.
+        Object[] args = getArguments();
+        String seed = null;
+        if (args != null && args.length >= 3) {
+            try {
+                shardIndex = Integer.parseInt(args[0].toString());
+                shardCount = Integer.parseInt(args[1].toString());
+                coordinator = new AID(args[2].toString(), AID.ISLOCALNAME);
+                MarketLog.info(getLocalName() + " - shard " + shardIndex + " of " + shardCount
+                        + ", prices from " + coordinator.getLocalName());
+            } catch (NumberFormatException e) {
+                MarketLog.warn(getLocalName() + " - Invalid shard arguments. Running a standalone market");
+                shardIndex = 0;
+                shardCount = 1;
+            }
+            if (args.length >= 4) {
+                seed = args[3].toString();
+            }
+        } else if (args != null && args.length == 1) {
+            seed = args[0].toString();
+        }
+        engine = createEngine(seed);
+
+        openJournal();
+
+        directory = new MarketDirectory(this, "market");
+        directory.setListener(new ParticipantListener());
+        directory.start();
+
+        for (AID participant : directory.members()) {
+            if (hostsMerchant(participant)) {
                 activeParticipants.add(participant);
-                System.out.println("Participant agent: " + participant.getLocalName() + " joined the game");
+                MarketLog.info("Participant agent: " + participant.getLocalName() + " joined the game");
             }
+        }
+
+        // A shard keeps running with no merchants, the coordinator waits for its report every round
+        if (!activeParticipants.isEmpty() || coordinator != null) {
+            router = new ConversationRouter(this);
+            addBehaviour(router);
+            metrics = new RoundMetrics();
+            stragglers = new StragglerPolicy(getLocalName());
+            registerO2AInterface(MarketSnapshot.Query.class, this);
+            addBehaviour(new QueryHandler());
 
             SequentialBehaviour behaviour = new SequentialBehaviour(this);
             behaviour.addSubBehaviour(new GameStartBehaviour());
@@ -45,345 +134,849 @@ public class BazaarAgent extends Agent {
             addBehaviour(behaviour);
 
         } else {
-            System.out.println("No participant agents found");
+            MarketLog.info("No participant agents found");
             doDelete();
         }
     }
 
-    private void iniciatePrices() {
-        prices.put("Cravinho", 20);
-        prices.put("Cinnamon", 5);
-        prices.put("Nutmeg", 15);
-        prices.put("Cardamom", 10);
+    // The seed is always logged, passing it back as argument plays the same events again
+    private MarketEngine createEngine(String seed) {
+        MarketEngine engine = new MarketEngine();
+        if (seed != null) {
+            try {
+                engine = new MarketEngine(Long.parseLong(seed.trim()));
+            } catch (NumberFormatException e) {
+                MarketLog.warn(getLocalName() + " - Invalid seed " + seed + ". Using a random seed");
+            }
+        }
+        MarketLog.info(getLocalName() + " - seed " + engine.getSeed());
+        return engine;
+    }
+
+    private void sendMeasured(ACLMessage msg) {
+        send(msg);
+        if (metrics != null) {
+            metrics.sent(msg);
+        }
+    }
+
+    // One MBean per phase of the round, named after its state, plus the whole round and the messages and
+    // content bytes the bazaar sends and receives per round
+    private class RoundMetrics {
+        final MarketMetrics.Phase round = MarketMetrics.phase(getLocalName(), "ROUND");
+        final MarketMetrics.Phase stockReplies = MarketMetrics.phase(getLocalName(), "STOCK_REPLIES");
+        final MarketMetrics.Phase priceMarket = MarketMetrics.phase(getLocalName(), "PRICE_MARKET");
+        final MarketMetrics.Phase publishPrices = MarketMetrics.phase(getLocalName(), "PUBLISH_PRICES");
+        final MarketMetrics.Phase orders = MarketMetrics.phase(getLocalName(), "ORDERS");
+        final MarketMetrics.Phase clearOrders = MarketMetrics.phase(getLocalName(), "CLEAR_ORDERS");
+        final MarketMetrics.Phase saleDecisions = MarketMetrics.phase(getLocalName(), "SALE_DECISIONS");
+
+        final MarketMetrics.Values messagesIn = MarketMetrics.values(getLocalName(), "messagesInPerRound");
+        final MarketMetrics.Values messagesOut = MarketMetrics.values(getLocalName(), "messagesOutPerRound");
+        final MarketMetrics.Values bytesIn = MarketMetrics.values(getLocalName(), "bytesInPerRound");
+        final MarketMetrics.Values bytesOut = MarketMetrics.values(getLocalName(), "bytesOutPerRound");
+
+        private long sentMessages;
+        private long sentBytes;
+        private long roundReceivedMessages;
+        private long roundReceivedBytes;
+
+        // A broadcast counts once per receiver
+        void sent(ACLMessage msg) {
+            int size = ConversationRouter.contentSize(msg);
+            jade.util.leap.Iterator receivers = msg.getAllReceiver();
+            while (receivers.hasNext()) {
+                receivers.next();
+                sentMessages++;
+                sentBytes += size;
+            }
+        }
+
+        void startRound() {
+            round.start();
+            roundReceivedMessages = router.getReceivedMessages();
+            roundReceivedBytes = router.getReceivedBytes();
+            sentMessages = 0;
+            sentBytes = 0;
+        }
+
+        void endRound() {
+            round.end();
+            messagesIn.record(router.getReceivedMessages() - roundReceivedMessages);
+            bytesIn.record(router.getReceivedBytes() - roundReceivedBytes);
+            messagesOut.record(sentMessages);
+            bytesOut.record(sentBytes);
+        }
+    }
+
+    @Override
+    public MarketSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    private void publishSnapshot(int round, String phase) {
+        snapshot.set(new MarketSnapshot(round, phase, merchantCount(), engine.getPrices(), engine.getStock(),
+                engine.getNextRoundEventType(), engine.getNextRoundTarget(), ledger.standings()));
+    }
+
+    // Answers every QUERY_REF with the last snapshot, whatever the state of the round
+    private class QueryHandler extends CyclicBehaviour {
+        private final MessageTemplate queries = MessageTemplate.MatchPerformative(ACLMessage.QUERY_REF);
+
+        @Override
+        public void action() {
+            ACLMessage query = myAgent.receive(queries);
+            if (query == null) {
+                block();
+                return;
+            }
+            MarketSnapshot current = snapshot.get();
+            ACLMessage reply = query.createReply();
+            if (current == null) {
+                reply.setPerformative(ACLMessage.FAILURE);
+                reply.setContent("The game has not started yet");
+            } else {
+                reply.setPerformative(ACLMessage.INFORM);
+                reply.setContent(current.format());
+            }
+            send(reply);
+            if (MarketLog.isEnabled(MarketLog.Level.TRACE)) {
+                MarketLog.trace(getLocalName() + " - Answered a market query from "
+                        + query.getSender().getLocalName());
+            }
+        }
+    }
+
+    // Number of merchants behind the active participants, pools count with all their merchants
+    private int merchantCount() {
+        int count = activeParticipants.size();
+        for (AID[] members : pools.values()) {
+            count += members.length - 1;
+        }
+        return count;
+    }
+
+    // The pool's merchants are named after the pool, pool.1 to pool.n. The first one takes over the ledger id
+    // the pool got at game start, the others get consecutive ids.
+    private void joinPool(AID pool, int size) {
+        AID[] members = pools.get(pool);
+        if (members != null && members.length == size) {
+            return;
+        }
+        members = new AID[size];
+        for (int i = 0; i < size; i++) {
+            members[i] = new AID(pool.getLocalName() + "." + (i + 1), AID.ISLOCALNAME);
+        }
+        Integer first = ledgerIds.get(pool);
+        if (first == null) {
+            ledgerIds.put(pool, ledger.add(members[0].getLocalName()));
+        } else {
+            ledger.setName(first, members[0].getLocalName());
+        }
+        for (int i = 1; i < size; i++) {
+            int id = ledger.add(members[i].getLocalName());
+            if (i == 1) {
+                poolLedgerIds.put(pool, id);
+            }
+        }
+        pools.put(pool, members);
+        MarketLog.info("Participant agent: " + pool.getLocalName() + " plays for " + size + " merchants");
     }
 
-    private void initializeStock() {
-        stock.put("Cravinho", 0);
-        stock.put("Cinnamon", 0);
-        stock.put("Nutmeg", 0);
-        stock.put("Cardamom", 0);
+    // Called when a participant leaves the DF or is evicted, its last known stock leaves the market totals
+    private void leave(AID participant) {
+        activeParticipants.remove(participant);
+        pools.remove(participant);
+        staleStock.remove(participant);
+        int[] known = knownStock.remove(participant);
+        if (known != null) {
+            for (int i = 0; i < Spice.COUNT; i++) {
+                stockChange[i] = -known[i];
+            }
+            engine.addStock(stockChange);
+        }
     }
 
+    private boolean needsFullStock(AID participant, int round) {
+        return (SNAPSHOT_ROUNDS > 0 && round % SNAPSHOT_ROUNDS == 0) || staleStock.contains(participant)
+                || !knownStock.containsKey(participant);
+    }
+
+    private boolean hostsMerchant(AID merchant) {
+        return Math.floorMod(merchant.getName().hashCode(), shardCount) == shardIndex;
+    }
+
+    // Every shard writes its own file, the shard index is appended to the configured name
+    private void openJournal() {
+        String file = System.getProperty("market.journal");
+        if (file == null) {
+            return;
+        }
+        if (coordinator != null) {
+            file += "." + shardIndex;
+        }
+        try {
+            journal = new RoundJournal(Paths.get(file));
+            MarketLog.info(getLocalName() + " - journaling rounds to " + file);
+        } catch (IOException | IllegalArgumentException e) {
+            MarketLog.warn(getLocalName() + " - Could not open the journal " + file + ": " + e.getMessage());
+        }
+    }
+
+    // The journal is best effort, a failed write stops journaling but never the game
+    private void journalFailed(IOException e) {
+        MarketLog.warn(getLocalName() + " - Journal write failed, journaling stopped: " + e.getMessage());
+        closeJournal();
+    }
+
+    private void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            MarketLog.warn(getLocalName() + " - Could not close the journal: " + e.getMessage());
+        }
+        journal = null;
+    }
+
+    // The merchants learn the length of the game from every round open, nothing needs to be sent here.
+    // Every participant gets its ledger id, a pool hands it to its first merchant once it reported their number.
     private class GameStartBehaviour extends OneShotBehaviour {
         public void action() {
-            System.out.println(getLocalName() + " - game is starting");
-            System.out.println("TOTAL_ROUNDS " + TOTAL_ROUNDS);
+            MarketLog.info(getLocalName() + " - game is starting");
+            MarketLog.info("TOTAL_ROUNDS " + TOTAL_ROUNDS);
 
-            ACLMessage totalRoundsMessage = new ACLMessage(ACLMessage.INFORM);
-            totalRoundsMessage.setContent("TOTAL_ROUNDS=" + TOTAL_ROUNDS);
             for (AID participant : activeParticipants) {
-                totalRoundsMessage.addReceiver(participant);
+                ledgerIds.put(participant, ledger.add(participant.getLocalName()));
             }
-            send(totalRoundsMessage);
 
-            int ackReceived = 0;
-            while (ackReceived < activeParticipants.size()) {
-                ACLMessage reply = blockingReceive();
-                if (reply != null && reply.getPerformative() == ACLMessage.CONFIRM) {
-                    ackReceived++;
+            if (journal != null) {
+                List<String> names = new ArrayList<>();
+                for (AID participant : activeParticipants) {
+                    merchantIds.put(participant, names.size());
+                    names.add(participant.getLocalName());
+                }
+                try {
+                    journal.writeGame(engine.getSeed(), TOTAL_ROUNDS, new double[0]);
+                    journal.writeMerchants(names);
+                } catch (IOException e) {
+                    journalFailed(e);
                 }
             }
+            publishSnapshot(0, "START");
         }
     }
 
     private class GameEndingBehaviour extends OneShotBehaviour {
         public void action() {
-            System.out.println(getLocalName() + " - game has ended, getting results");
-    
-            AID winner = null;
-            Integer winnerCoins = null;
-    
-            for (Map.Entry<AID, Integer> entry : wallets.entrySet()) {
-                AID key = entry.getKey();
-                Integer value = entry.getValue();
-                
-                System.out.println(key.getLocalName() + " has " + value.toString() + " coins");
-    
-                if (winner == null) {
-                    winner = key;
-                    winnerCoins = value;
-                } else {
-                    if (value > winnerCoins) {
-                        winner = key;
-                        winnerCoins = value;
-                    }
+            MarketLog.info(getLocalName() + " - game has ended, getting results");
+            MarketLog.info(getLocalName() + " - stragglers: " + stragglers.summary());
+
+            if (MarketLog.isEnabled(MarketLog.Level.TRACE)) {
+                for (int id = 0; id < ledger.size(); id++) {
+                    MarketLog.trace(ledger.getName(id) + " has " + ledger.getCoins(id) + " coins");
                 }
             }
-    
-            System.out.println("Winner is: " + winner.getLocalName());
+            for (MerchantLedger.Standing standing : ledger.standings()) {
+                MarketLog.info(standing.rank + ". " + standing.name + " has " + standing.coins + " coins");
+            }
+
+            List<MerchantLedger.Standing> winners = ledger.winners();
+            if (winners.isEmpty()) {
+                MarketLog.info("No merchant sold anything");
+            } else if (winners.size() == 1) {
+                MarketLog.info("Winner is: " + winners.get(0).name);
+            } else {
+                StringBuilder names = new StringBuilder();
+                for (MerchantLedger.Standing winner : winners) {
+                    names.append(names.length() > 0 ? ", " : "").append(winner.name);
+                }
+                MarketLog.info("Winners are: " + names + ", tied with " + winners.get(0).coins + " coins");
+            }
+
+            // The coordinator takes one merchant per shard, the first one on the board in a tie. A shard
+            // without a winner still answers, with an empty result, so the coordinator does not wait for it.
+            if (coordinator != null) {
+                ACLMessage result = new ACLMessage(ACLMessage.INFORM);
+                result.setConversationId(MarketProtocol.conversationId(MarketProtocol.RESULT, 0));
+                result.setContent(winners.isEmpty() ? "" : winners.get(0).name + "," + winners.get(0).coins);
+                result.addReceiver(coordinator);
+                sendMeasured(result);
+            }
+            publishSnapshot(TOTAL_ROUNDS, "GAME_OVER");
         }
     }
 
-    private class RoundBehaviour extends SimpleBehaviour {
-
-        int round_counter = 0;
-        private String nextRoundEventType = null;
-        private String nextRoundTarget = null;
+    private class RoundBehaviour extends FSMBehaviour {
 
-        public void action() {
-            System.out.println("ROUND " + round_counter);
+        private static final String OPEN_ROUND = "OPEN_ROUND";
+        private static final String STOCK_REPLIES = "STOCK_REPLIES";
+        private static final String PRICE_MARKET = "PRICE_MARKET";
+        private static final String PUBLISH_PRICES = "PUBLISH_PRICES";
+        private static final String ORDERS = "ORDERS";
+        private static final String CLEAR_ORDERS = "CLEAR_ORDERS";
+        private static final String SALE_DECISIONS = "SALE_DECISIONS";
+        private static final String CLOSE_ROUND = "CLOSE_ROUND";
+        private static final String ROUNDS_OVER = "ROUNDS_OVER";
 
-            broadcastCurrentRound(round_counter);
+        private static final int NEXT_ROUND = 0;
+        private static final int LAST_ROUND = 1;
 
-            resetStock();
+        int round_counter = 0;
 
-            getStockFromMerchants();
+        // Decoding buffers reused for every reply
+        private final int[] stockReport = new int[Spice.COUNT];
+        private final MarketCodec.SaleDecision saleDecision = new MarketCodec.SaleDecision();
+        private final MarketCodec.PriceBroadcast globalPrices = new MarketCodec.PriceBroadcast();
+        private final MarketCodec.TradeProposal order = new MarketCodec.TradeProposal();
+        private final MarketCodec.FillReport fill = new MarketCodec.FillReport();
+        private final MarketCodec.ShardStock poolStock = new MarketCodec.ShardStock();
+        private MarketCodec.FillReport[] poolFills = new MarketCodec.FillReport[0];
+
+        // A batch of a pool is decoded whole before any of it is used, so a malformed batch changes nothing
+        private MarketCodec.TradeProposal[] poolOrders = new MarketCodec.TradeProposal[0];
+        private MarketCodec.SaleDecision[] poolSales = new MarketCodec.SaleDecision[0];
+
+        // Order book id of every merchant that submitted an order this round, the id of its first merchant
+        // for a pool: the orders of a pool get consecutive ids
+        private final Map<AID, Integer> orderIds = new HashMap<>();
+
+        // Merchants that already got the open of the next round in pipelined mode
+        private final Set<AID> openedEarly = new HashSet<>();
+
+        RoundBehaviour() {
+            super(BazaarAgent.this);
+
+            registerFirstState(new OneShotBehaviour(myAgent) {
+                public void action() {
+                    metrics.startRound();
+                    MarketLog.info("ROUND " + round_counter);
+                    openRound();
+                }
+            }, OPEN_ROUND);
+
+            // A merchant without a stock report counts with its last known stock and reports all of it next round
+            registerState(new MerchantBarrier("stock", MarketProtocol.STOCK, ACLMessage.INFORM,
+                    metrics.stockReplies) {
+                // A report of an agent that does not play, or no longer plays, stays out of the market totals
+                protected void handleReply(ACLMessage reply) {
+                    if (!activeParticipants.contains(reply.getSender())) {
+                        rejectReply(reply, "it does not play this game");
+                        return;
+                    }
+                    try {
+                        updateStock(reply);
+                    } catch (IllegalArgumentException e) {
+                        rejectReply(reply, e);
+                    }
+                }
 
-            System.out.println(getLocalName() + " - updated stock: " + stock.toString());
+                public int onEnd() {
+                    if (hasTimedOut()) {
+                        staleStock.addAll(missing(activeParticipants));
+                    }
+                    publishSnapshot(round_counter, STOCK_REPLIES);
+                    return super.onEnd();
+                }
+            }, STOCK_REPLIES);
 
-            adjustPrices();
+            if (coordinator == null) {
+                registerState(new OneShotBehaviour(myAgent) {
+                    public void action() {
+                        metrics.priceMarket.start();
+                        MarketLog.info(getLocalName() + " - updated stock: " + Spice.format(engine.getStock()));
 
-            System.out.println(getLocalName() + " - updated prices: " + prices.toString());
+                        engine.adjustPrices(merchantCount());
 
-            determineNextRoundEvent();
+                        MarketLog.info(getLocalName() + " - updated prices: " + Spice.format(engine.getPrices()));
 
-            broadcastPricesAndEvent();
+                        engine.determineNextRoundEvent();
+                        publishSnapshot(round_counter, PRICE_MARKET);
+                        metrics.priceMarket.end();
+                    }
+                }, PRICE_MARKET);
+            } else {
+                // The shard stock goes to the coordinator, which answers with the prices of the whole market
+                registerState(new ReplyBarrierBehaviour(myAgent, router,
+                        () -> MarketProtocol.conversationId(MarketProtocol.PRICES, round_counter),
+                        MessageTemplate.and(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                                MessageTemplate.MatchSender(coordinator)),
+                        () -> 1, StragglerPolicy.deadline("prices")) {
+                    public void onStart() {
+                        super.onStart();
+                        sendShardStock();
+                    }
 
-            round_counter++;
-        }
+                    // Without valid prices the shard keeps the last ones when the deadline passes
+                    protected void handleReply(ACLMessage reply) {
+                        try {
+                            MarketCodec.decodePriceBroadcast(reply.getByteSequenceContent(), globalPrices);
+                        } catch (IllegalArgumentException e) {
+                            rejectReply(reply, e);
+                            return;
+                        }
+                        engine.updateMarket(globalPrices.prices, globalPrices.eventType, globalPrices.eventTarget);
+                        MarketLog.info(getLocalName() + " - market prices: " + Spice.format(engine.getPrices()));
+                    }
 
-        private void broadcastCurrentRound(int currentRound) {
-            ACLMessage currentRoundMessage = new ACLMessage(ACLMessage.INFORM);
-            currentRoundMessage.setContent("CURRENT_ROUND=" + currentRound);
-            for (AID participant : activeParticipants) {
-                currentRoundMessage.addReceiver(participant);
+                    public int onEnd() {
+                        publishSnapshot(round_counter, PRICE_MARKET);
+                        return super.onEnd();
+                    }
+                }.measure(metrics.priceMarket), PRICE_MARKET);
             }
-            send(currentRoundMessage);
 
-            // Wait for ACKs from all merchants
-            int ackReceived = 0;
-            while (ackReceived < activeParticipants.size()) {
-                ACLMessage reply = blockingReceive(); // Blocking until an ACK is received
-                if (reply != null && reply.getPerformative() == ACLMessage.CONFIRM) {
-                    ackReceived++;
+            registerState(new OneShotBehaviour(myAgent) {
+                public void action() {
+                    metrics.publishPrices.start();
+                    orderBook.reset();
+                    orderIds.clear();
+                    broadcastPricesAndEvent();
+                    journalRound.clear();
+                    journalRound.set(round_counter, engine.getPrices(), engine.getStock(),
+                            engine.getNextRoundEventType(), engine.getNextRoundTarget());
+                    metrics.publishPrices.end();
+                }
+            }, PUBLISH_PRICES);
+
+            // A merchant without an order does not trade and gets an empty fill report
+            registerState(new MerchantBarrier("orders", MarketProtocol.TRADE, ACLMessage.PROPOSE, metrics.orders) {
+                protected void handleReply(ACLMessage reply) {
+                    try {
+                        submitOrder(reply);
+                    } catch (IllegalArgumentException e) {
+                        rejectReply(reply, e);
+                    }
+                }
+            }, ORDERS);
+
+            registerState(new OneShotBehaviour(myAgent) {
+                public void action() {
+                    metrics.clearOrders.start();
+                    orderBook.clear();
+                    MarketLog.info(getLocalName() + " - Cleared " + orderBook.size() + " orders in "
+                            + orderBook.getTrades() + " trades");
+                    sendFillReports();
+                    metrics.clearOrders.end();
+                }
+            }, CLEAR_ORDERS);
+
+            // A merchant without a sale decision holds its stock this round
+            registerState(new MerchantBarrier("sales", MarketProtocol.SALE, ACLMessage.INFORM,
+                    metrics.saleDecisions) {
+                protected void handleReply(ACLMessage reply) {
+                    try {
+                        processSaleDecision(reply);
+                    } catch (IllegalArgumentException e) {
+                        rejectReply(reply, e);
+                        return;
+                    }
+                    if (PIPELINED) {
+                        openNextRoundEarly(reply.getSender());
+                    }
                 }
-            }
-        }
-
-        private void resetStock() {
-            stock.put("Cravinho", 0);
-            stock.put("Cinnamon", 0);
-            stock.put("Nutmeg", 0);
-            stock.put("Cardamom", 0);
-        }
 
-        private void getStockFromMerchants() {
-            ACLMessage requestStock = new ACLMessage(ACLMessage.REQUEST);
-            requestStock.setContent("STOCK");
-            for (AID participant : activeParticipants) {
-                requestStock.addReceiver(participant);
-            }
-            send(requestStock);
+                public int onEnd() {
+                    if (!hasTimedOut()) {
+                        MarketLog.info(getLocalName() + " - All participants submitted their sale decisions.");
+                    }
+                    return super.onEnd();
+                }
+            }, SALE_DECISIONS);
+
+            registerState(new OneShotBehaviour(myAgent) {
+                public void action() {
+                    if (journal != null) {
+                        try {
+                            journal.append(journalRound);
+                        } catch (IOException e) {
+                            journalFailed(e);
+                        }
+                    }
+                    metrics.endRound();
+                    for (AID merchant : stragglers.roundEnded(activeParticipants)) {
+                        leave(merchant);
+                    }
+                    // The sales of the round and the evictions are in
+                    publishSnapshot(round_counter, CLOSE_ROUND);
+                    round_counter++;
+                }
 
-            int responsesReceived = 0;
+                public int onEnd() {
+                    return round_counter >= TOTAL_ROUNDS ? LAST_ROUND : NEXT_ROUND;
+                }
+            }, CLOSE_ROUND);
 
-            while (responsesReceived < activeParticipants.size()) {
-                ACLMessage reply = blockingReceive(); // wait for responses
-                if (reply != null && reply.getPerformative() == ACLMessage.INFORM) {
-                    responsesReceived++;
-                    updateStock(reply);
+            registerLastState(new OneShotBehaviour(myAgent) {
+                public void action() {
                 }
-            }
+            }, ROUNDS_OVER);
+
+            String[] roundStates = { OPEN_ROUND, STOCK_REPLIES, PRICE_MARKET, PUBLISH_PRICES, ORDERS, CLEAR_ORDERS,
+                    SALE_DECISIONS, CLOSE_ROUND };
+            registerDefaultTransition(OPEN_ROUND, STOCK_REPLIES);
+            registerDefaultTransition(STOCK_REPLIES, PRICE_MARKET);
+            registerDefaultTransition(PRICE_MARKET, PUBLISH_PRICES);
+            registerDefaultTransition(PUBLISH_PRICES, ORDERS);
+            registerDefaultTransition(ORDERS, CLEAR_ORDERS);
+            registerDefaultTransition(CLEAR_ORDERS, SALE_DECISIONS);
+            registerDefaultTransition(SALE_DECISIONS, CLOSE_ROUND);
+            registerTransition(CLOSE_ROUND, OPEN_ROUND, NEXT_ROUND, roundStates);
+            registerTransition(CLOSE_ROUND, ROUNDS_OVER, LAST_ROUND);
         }
 
-        // Adjust prices based on current stock levels and market size
-        private void adjustPrices() {
-            int marketFactor = activeParticipants.size();
-
-            int cravinhoStock = stock.get("Cravinho");
-            int cinnamonStock = stock.get("Cinnamon");
-            int nutmegStock = stock.get("Nutmeg");
-            int cardamomStock = stock.get("Cardamom");
-
-            // Cravinho - rare and valuable
-            if (cravinhoStock < 10 * marketFactor) {
-                prices.put("Cravinho", prices.get("Cravinho") + (10 / marketFactor));
-            } else if (cravinhoStock > 30 * marketFactor) {
-                prices.put("Cravinho", Math.max(20, prices.get("Cravinho") - (5 / marketFactor)));
+        // Waits for one reply per active merchant until the deadline of the phase and hands the merchants that
+        // missed it to the straggler policy
+        private class MerchantBarrier extends ReplyBarrierBehaviour {
+            private final String phase;
+
+            MerchantBarrier(String phase, String conversation, int performative, MarketMetrics.Phase metric) {
+                super(BazaarAgent.this, router, () -> MarketProtocol.conversationId(conversation, round_counter),
+                        MessageTemplate.MatchPerformative(performative), activeParticipants::size,
+                        StragglerPolicy.deadline(phase));
+                this.phase = phase;
+                measure(metric);
+                stragglers.track(phase);
             }
 
-            // Cinnamon - stable
-            if (cinnamonStock > 40 * marketFactor) {
-                prices.put("Cinnamon", Math.max(3, prices.get("Cinnamon") - (1 / marketFactor)));
-            } else if (cinnamonStock < 20 * marketFactor) {
-                prices.put("Cinnamon", prices.get("Cinnamon") + (2 / marketFactor));
+            @Override
+            public int onEnd() {
+                stragglers.phaseEnded(phase,
+                        hasTimedOut() ? missing(activeParticipants) : Collections.<AID>emptyList());
+                return super.onEnd();
             }
 
-            // Nutmeg - sensitive to demand
-            if (nutmegStock < 15 * marketFactor) {
-                prices.put("Nutmeg", prices.get("Nutmeg") + (10 / marketFactor));
-            } else if (nutmegStock > 35 * marketFactor) {
-                prices.put("Nutmeg", Math.max(10, prices.get("Nutmeg") - (5 / marketFactor)));
+            @Override
+            protected void onTimeout(int received, int expected) {
+                MarketLog.warn(getLocalName() + " - " + getConversationId() + " deadline passed with " + received
+                        + "/" + expected + " replies, the others get the default answer");
             }
+        }
 
-            // Cardamom - volatile
-            if (cardamomStock < 10 * marketFactor) {
-                prices.put("Cardamom", prices.get("Cardamom") + (5 / marketFactor));
-            } else if (cardamomStock > 40 * marketFactor) {
-                prices.put("Cardamom", Math.max(5, prices.get("Cardamom") - (3 / marketFactor)));
+        // One message opens the round and asks for the stock, the stock reports double as acknowledgements.
+        // A second one goes to the merchants that must report their whole stock.
+        // Merchants opened early by the pipeline are skipped, a merchant that missed the sale deadline is not.
+        private void openRound() {
+            ACLMessage requestChanges = roundOpen(round_counter, false);
+            ACLMessage requestFullStock = roundOpen(round_counter, true);
+            int changes = 0;
+            int fullStock = 0;
+            for (AID participant : activeParticipants) {
+                if (openedEarly.contains(participant)) {
+                    continue;
+                }
+                if (needsFullStock(participant, round_counter)) {
+                    requestFullStock.addReceiver(participant);
+                    fullStock++;
+                } else {
+                    requestChanges.addReceiver(participant);
+                    changes++;
+                }
             }
+            openedEarly.clear();
+            if (changes > 0) {
+                sendMeasured(requestChanges);
+            }
+            if (fullStock > 0) {
+                sendMeasured(requestFullStock);
+            }
+        }
 
-            // Adjust prices based on event
-            if (nextRoundEventType != null) {
-                switch (nextRoundEventType) {
-                    case "SULTAN_TAX":
-                        // Decrease all prices due to Sultan's tax
-                        for (Map.Entry<String, Integer> entry : prices.entrySet()) {
-                            prices.put(entry.getKey(), Math.max(1, (int) (entry.getValue() * 0.9))); // 10% decrease,
-                                                                                                     // with a floor of
-                                                                                                     // 1
-                        }
-                        break;
+        // The merchant state only depends on its own messages, so opening its next round before the other
+        // merchants decided changes nothing but the time its stock report arrives
+        private void openNextRoundEarly(AID merchant) {
+            // A late merchant may be evicted at the end of the round, it waits for the regular round open
+            if (round_counter + 1 >= TOTAL_ROUNDS || stragglers.isLate(merchant) || !openedEarly.add(merchant)) {
+                return;
+            }
+            ACLMessage requestStock = roundOpen(round_counter + 1, needsFullStock(merchant, round_counter + 1));
+            requestStock.addReceiver(merchant);
+            sendMeasured(requestStock);
+        }
 
-                    case "TRADE_ROUTE":
-                        // Decrease price of the affected spice due to a new trade route
-                        if (nextRoundTarget != null) {
-                            int currentPrice = prices.get(nextRoundTarget);
-                            prices.put(nextRoundTarget, (int) (currentPrice * 0.8)); // 20% decrease
-                        }
-                        break;
+        private ACLMessage roundOpen(int round, boolean fullStock) {
+            ACLMessage requestStock = new ACLMessage(ACLMessage.REQUEST);
+            requestStock.setByteSequenceContent(MarketCodec.encodeRoundOpen(round, TOTAL_ROUNDS, fullStock));
+            requestStock.setConversationId(MarketProtocol.conversationId(MarketProtocol.STOCK, round));
+            return requestStock;
+        }
 
-                    default:
-                        break;
+        // Only the change of the participant's stock is added to the market totals
+        private void updateStock(ACLMessage reply) {
+            AID sender = reply.getSender();
+            byte[] data = reply.getByteSequenceContent();
+            byte type = MarketCodec.recordType(data);
+            int[] known = knownStock.get(sender);
+            if (type == MarketCodec.STOCK_DELTA) {
+                if (known == null || staleStock.contains(sender)) {
+                    MarketLog.warn(getLocalName() + " - Ignoring stock changes from " + sender.getLocalName()
+                            + ", its whole stock is needed");
+                    staleStock.add(sender);
+                    return;
+                }
+                MarketCodec.decodeStockDelta(data, stockChange);
+            } else {
+                int[] stock;
+                if (type == MarketCodec.SHARD_STOCK) {
+                    MarketCodec.decodeShardStock(data, poolStock);
+                    if (poolStock.merchants < 1) {
+                        throw new IllegalArgumentException("A pool needs at least one merchant, got "
+                                + poolStock.merchants);
+                    }
+                    joinPool(sender, poolStock.merchants);
+                    stock = poolStock.stock;
+                } else {
+                    stock = MarketCodec.decodeStockReport(data, stockReport);
+                }
+                if (known == null) {
+                    known = new int[Spice.COUNT];
+                    knownStock.put(sender, known);
                 }
+                for (int i = 0; i < Spice.COUNT; i++) {
+                    stockChange[i] = stock[i] - known[i];
+                }
+                staleStock.remove(sender);
+            }
+            for (int i = 0; i < Spice.COUNT; i++) {
+                known[i] += stockChange[i];
             }
+            engine.addStock(stockChange);
         }
 
-        private void updateStock(ACLMessage reply) {
-            String content = reply.getContent();
-            String[] stocks = content.split(",");
+        private void sendShardStock() {
+            MarketLog.info(getLocalName() + " - shard stock: " + Spice.format(engine.getStock()));
 
-            stock.put("Cravinho", stock.get("Cravinho") + Integer.parseInt(stocks[0]));
-            stock.put("Cinnamon", stock.get("Cinnamon") + Integer.parseInt(stocks[1]));
-            stock.put("Nutmeg", stock.get("Nutmeg") + Integer.parseInt(stocks[2]));
-            stock.put("Cardamom", stock.get("Cardamom") + Integer.parseInt(stocks[3]));
+            ACLMessage report = new ACLMessage(ACLMessage.INFORM);
+            report.setByteSequenceContent(MarketCodec.encodeShardStock(merchantCount(), engine.getStock()));
+            report.setConversationId(MarketProtocol.conversationId(MarketProtocol.STOCK, round_counter));
+            report.addReceiver(coordinator);
+            sendMeasured(report);
         }
 
         private void broadcastPricesAndEvent() {
+            // Human readable version of the broadcast, only used for logging
             StringBuilder messageContent = new StringBuilder();
             messageContent.append("PRICES,").append(getPricesAsCommaSeparatedString());
 
-            messageContent.append("|EVENT,");
-            if (nextRoundEventType == null) {
-                messageContent.append("No significant events.");
-            } else {
-                switch (nextRoundEventType) {
-                    case "STORM":
-                        messageContent.append("A storm destroyed " + nextRoundTarget
-                                + " plantations: the price will increase in the next round.");
-                        break;
-                    case "SULTAN_TAX":
-                        messageContent.append(
-                                "The Sultan has imposed a new tax: all prices will increase in the next round.");
-                        break;
-                    case "TRADE_ROUTE":
-                        messageContent.append("A new trade route has been discovered for " + nextRoundTarget
-                                + " : the price will decrease in the next round.");
-                        break;
-                }
-            }
+            messageContent.append("|EVENT,").append(engine.describeNextRoundEvent());
 
             // Send the message to all active participants
             ACLMessage broadcastMessage = new ACLMessage(ACLMessage.INFORM);
-            broadcastMessage.setContent(messageContent.toString());
+            broadcastMessage.setByteSequenceContent(MarketCodec.encodePriceBroadcast(round_counter,
+                    engine.getPrices(), engine.getNextRoundEventType(), engine.getNextRoundTarget()));
+            broadcastMessage.setConversationId(MarketProtocol.conversationId(MarketProtocol.PRICES, round_counter));
             for (AID participant : activeParticipants) {
                 broadcastMessage.addReceiver(participant);
             }
-            send(broadcastMessage);
-            System.out.println(getLocalName() + " - " + messageContent);
+            sendMeasured(broadcastMessage);
+            MarketLog.info(getLocalName() + " - " + messageContent);
+        }
+
+        // Only the first order of a merchant counts, it is prioritised by arrival
+        private void submitOrder(ACLMessage reply) {
+            AID merchant = reply.getSender();
+            if (orderIds.containsKey(merchant)) {
+                if (MarketLog.isEnabled(MarketLog.Level.TRACE)) {
+                    MarketLog.trace(getLocalName() + " - Ignoring extra order from " + merchant.getLocalName());
+                }
+                return;
+            }
+            byte[] data = reply.getByteSequenceContent();
+            if (MarketCodec.recordType(data) == MarketCodec.ORDER_BATCH) {
+                submitOrders(merchant, MarketCodec.readBatch(data, MarketCodec.ORDER_BATCH));
+                return;
+            }
+            MarketCodec.decodeTradeProposal(data, order);
+            orderIds.put(merchant, orderBook.submit(order));
+            if (MarketLog.isEnabled(MarketLog.Level.TRACE)) {
+                MarketLog.trace(getLocalName() + " - Received order from " + merchant.getLocalName() + ": " + order);
+            }
+        }
+
+        // A batch that does not hold one order per merchant of the pool is ignored, the pool does not trade
+        private void submitOrders(AID pool, MarketCodec.BatchReader batch) {
+            AID[] members = pools.get(pool);
+            if (members == null || batch.size() != members.length) {
+                MarketLog.warn(getLocalName() + " - Ignoring " + batch.size() + " orders from " + pool.getLocalName()
+                        + (members == null ? ", its stock report did not arrive" : " for " + members.length
+                                + " merchants"));
+                return;
+            }
+            poolOrders = ensureCapacity(poolOrders, members.length, MarketCodec.TradeProposal[]::new,
+                    MarketCodec.TradeProposal::new);
+            for (int i = 0; i < members.length; i++) {
+                batch.nextOrder(poolOrders[i]);
+            }
+            int first = orderBook.size();
+            for (int i = 0; i < members.length; i++) {
+                orderBook.submit(poolOrders[i]);
+            }
+            orderIds.put(pool, first);
+            if (MarketLog.isEnabled(MarketLog.Level.TRACE)) {
+                MarketLog.trace(getLocalName() + " - Received " + members.length + " orders from "
+                        + pool.getLocalName());
+            }
+        }
+
+        // Every participant gets exactly one report, an empty one when it did not trade
+        private void sendFillReports() {
+            String tradeConversation = MarketProtocol.conversationId(MarketProtocol.TRADE, round_counter);
+            for (AID participant : activeParticipants) {
+                Integer id = orderIds.get(participant);
+                if (id == null) {
+                    fill.clear();
+                } else if (!pools.containsKey(participant)) {
+                    orderBook.fillOf(id, fill);
+                }
+
+                ACLMessage report = new ACLMessage(ACLMessage.INFORM);
+                report.setConversationId(tradeConversation);
+                AID[] members = pools.get(participant);
+                if (members != null) {
+                    report.setByteSequenceContent(poolFills(id, members.length));
+                    report.addReceiver(participant);
+                    sendMeasured(report);
+                    continue;
+                }
+                report.setByteSequenceContent(MarketCodec.encodeFillReport(fill));
+                report.addReceiver(participant);
+                sendMeasured(report);
+                if (!fill.isEmpty() && MarketLog.isEnabled(MarketLog.Level.TRACE)) {
+                    MarketLog.trace(participant.getLocalName() + " traded " + fill);
+                }
+            }
+        }
 
-            // Wait for sale decisions from all participants
-            int decisionsReceived = 0;
-            while (decisionsReceived < activeParticipants.size()) {
-                ACLMessage reply = blockingReceive(); // Wait for responses
-                if (reply != null && reply.getPerformative() == ACLMessage.INFORM) {
-                    processSaleDecision(reply);
-                    decisionsReceived++;
+        // One fill per merchant of the pool, in the order of its orders
+        private byte[] poolFills(Integer first, int size) {
+            poolFills = ensureCapacity(poolFills, size, MarketCodec.FillReport[]::new, MarketCodec.FillReport::new);
+            for (int i = 0; i < size; i++) {
+                if (first == null) {
+                    poolFills[i].clear();
+                } else {
+                    orderBook.fillOf(first + i, poolFills[i]);
                 }
             }
-            System.out.println(getLocalName() + " - All participants submitted their sale decisions.");
+            return MarketCodec.encodeFillBatch(poolFills, size);
         }
 
-        // Process a sale decision message from a merchant
+        // Process a sale decision message from a merchant, or the decisions of all the merchants of a pool
         private void processSaleDecision(ACLMessage reply) {
-            String content = reply.getContent();
-            System.out.println(getLocalName() + " - Received sale decision: " + content + " from "
-                    + reply.getSender().getLocalName());
+            byte[] data = reply.getByteSequenceContent();
+            AID sender = reply.getSender();
+            // The journal records the sales of a pool's merchants under the id of the pool
+            Integer merchantId = merchantIds.get(sender);
+            Integer ledgerId = ledgerIds.get(sender);
+            if (ledgerId == null) {
+                MarketLog.warn(getLocalName() + " - Ignoring sale decisions from " + sender.getLocalName()
+                        + ", it does not play this game");
+                return;
+            }
+            if (MarketCodec.recordType(data) == MarketCodec.SALE_BATCH) {
+                AID[] members = pools.get(sender);
+                if (members == null) {
+                    MarketLog.warn(getLocalName() + " - Ignoring sale decisions from unknown pool "
+                            + sender.getLocalName());
+                    return;
+                }
+                MarketCodec.BatchReader batch = MarketCodec.readBatch(data, MarketCodec.SALE_BATCH);
+                int count = Math.min(members.length, batch.size());
+                poolSales = ensureCapacity(poolSales, count, MarketCodec.SaleDecision[]::new,
+                        MarketCodec.SaleDecision::new);
+                for (int i = 0; i < count; i++) {
+                    batch.nextSale(poolSales[i]);
+                }
+                int others = members.length > 1 ? poolLedgerIds.get(sender) - 1 : 0;
+                for (int i = 0; i < count; i++) {
+                    applySale(i == 0 ? ledgerId : others + i, merchantId, poolSales[i]);
+                }
+                return;
+            }
+            MarketCodec.SaleDecision decision = MarketCodec.decodeSaleDecision(data, saleDecision);
+            if (MarketLog.isEnabled(MarketLog.Level.TRACE)) {
+                MarketLog.trace(getLocalName() + " - Received sale decision with " + decision.count
+                        + " entries from " + sender.getLocalName());
+            }
+            applySale(ledgerId, merchantId, decision);
+        }
 
-            if ("HOLD".equals(content)) {
+        private void applySale(int ledgerId, Integer merchantId, MarketCodec.SaleDecision decision) {
+            if (decision.isHold()) {
                 // The merchant decided to hold their stock
-                System.out.println(reply.getSender().getLocalName() + " decided to hold their stock.");
+                if (MarketLog.isEnabled(MarketLog.Level.TRACE)) {
+                    MarketLog.trace(ledger.getName(ledgerId) + " decided to hold their stock.");
+                }
             } else {
-                // Parse and update the market stock
-                String[] saleEntries = content.split(";");
-                for (String saleEntry : saleEntries) {
-                    String[] saleDetails = saleEntry.split(",");
-                    String spice = saleDetails[0];
-                    int quantity = Integer.parseInt(saleDetails[1]);
-                    int totalValue = Integer.parseInt(saleDetails[2]);
-
-                    AID agentID = reply.getSender();
-                    if(wallets.containsKey(agentID)){
-                        wallets.put(agentID, wallets.get(agentID) + totalValue);
-                    }else{
-                        wallets.put(agentID, totalValue);
-                    }
+                // Update the wallet of the merchant
+                int earned = engine.processSaleDecision(decision);
+                ledger.credit(ledgerId, earned);
+                if (merchantId != null) {
+                    journalRound.addSale(merchantId, decision, earned);
+                }
 
-                    // Log the sale
-                    System.out.println(reply.getSender().getLocalName() + " sold " + quantity + " " + spice + " for "
-                            + totalValue + " coins.");
+                // Log the sales
+                if (MarketLog.isEnabled(MarketLog.Level.TRACE)) {
+                    for (int i = 0; i < decision.count; i++) {
+                        MarketLog.trace(ledger.getName(ledgerId) + " sold " + decision.quantities[i] + " "
+                                + Spice.fromIndex(decision.spices[i]) + " for " + decision.values[i] + " coins.");
+                    }
                 }
             }
         }
 
-        private void determineNextRoundEvent() {
-            double eventProbability = Math.random();
-            if (eventProbability < 0.15) {
-                nextRoundEventType = "STORM";
-                nextRoundTarget = pickRandomSpice();
-            } else if (eventProbability < 0.30) {
-                nextRoundEventType = "SULTAN_TAX";
-            } else if (eventProbability < 0.45) {
-                nextRoundEventType = "TRADE_ROUTE";
-                nextRoundTarget = pickRandomSpice();
-            } else {
-                nextRoundEventType = null;
-                nextRoundTarget = null;
+        // Grows a buffer of reused records to hold at least size of them
+        private <T> T[] ensureCapacity(T[] records, int size, IntFunction<T[]> array, Supplier<T> record) {
+            if (records.length >= size) {
+                return records;
+            }
+            T[] grown = array.apply(size);
+            System.arraycopy(records, 0, grown, 0, records.length);
+            for (int i = records.length; i < size; i++) {
+                grown[i] = record.get();
             }
+            return grown;
         }
 
-        private String pickRandomSpice() {
-            String[] spices = { "Cravinho", "Cinnamon", "Nutmeg", "Cardamom" };
-            return spices[(int) (Math.random() * spices.length)];
+        private String getPricesAsCommaSeparatedString() {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < Spice.COUNT; i++) {
+                if (i > 0) {
+                    builder.append(",");
+                }
+                builder.append(engine.getPrices()[i]);
+            }
+            return builder.toString();
         }
+    }
 
-        private String getPricesAsCommaSeparatedString() {
-            return prices.get("Cravinho") + "," + prices.get("Cinnamon") + "," + prices.get("Nutmeg") + ","
-                    + prices.get("Cardamom");
+    // Merchants that leave the DF stop being waited for, late registrations only join the next game
+    private class ParticipantListener implements MarketDirectory.Listener {
+        @Override
+        public void joined(AID agent) {
+            if (!hostsMerchant(agent)) {
+                return;
+            }
+            MarketLog.info("Participant agent: " + agent.getLocalName() + " registered after the game started");
         }
 
-        public boolean done() {
-            return round_counter >= TOTAL_ROUNDS;
+        @Override
+        public void left(AID agent) {
+            if (activeParticipants.contains(agent)) {
+                leave(agent);
+                MarketLog.info("Participant agent: " + agent.getLocalName() + " left the game");
+            }
         }
     }
 
-    private AID[] findAgentsByService(String serviceType) {
-        try {
-            DFAgentDescription dfd = new DFAgentDescription();
-            ServiceDescription sd = new ServiceDescription();
-            sd.setType(serviceType);
-            dfd.addServices(sd);
-
-            DFAgentDescription[] result = DFService.search(this, dfd);
-            AID[] agentIDs = new AID[result.length];
-            for (int i = 0; i < result.length; i++) {
-                agentIDs[i] = result[i].getName();
-            }
-            return agentIDs;
-        } catch (FIPAException e) {
-            e.printStackTrace();
-            return null;
+    @Override
+    protected void takeDown() {
+        if (directory != null) {
+            directory.stop();
         }
+        closeJournal();
+        MarketMetrics.unregister(getLocalName());
     }
 
 }
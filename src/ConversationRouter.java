@@ -0,0 +1,137 @@
+package projectAgents;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import jade.core.Agent;
+import jade.core.behaviours.Behaviour;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+// Drains the mailbox once and dispatches every message into a queue per conversation id.
+// Replies for a phase that is not open yet are buffered until a waiter asks for them,
+// replies for a phase that was already closed are discarded.
+// Phases only move forward, so closing a round of a phase also closes its earlier rounds and the router only
+// remembers the last closed round of every phase instead of every closed conversation id.
+public class ConversationRouter extends CyclicBehaviour {
+
+    // DF subscription notifications also carry a conversation id and must stay in the mailbox, and so do
+    // queries, which the agent answers outside the rounds
+    private static final MessageTemplate MARKET_CONVERSATIONS = new MessageTemplate(
+            msg -> msg.getPerformative() != ACLMessage.QUERY_REF
+                    && MarketProtocol.isMarketConversation(msg.getConversationId()));
+
+    private final MessageTemplate template;
+    private final Map<String, ArrayDeque<ACLMessage>> queues = new HashMap<>();
+    private final Map<String, Behaviour> waiters = new HashMap<>();
+    private final Map<String, Integer> closedRounds = new HashMap<>();
+
+    // Everything routed so far, for the traffic metrics of the agent
+    private long receivedMessages;
+    private long receivedBytes;
+
+    public ConversationRouter(Agent agent) {
+        this(agent, MARKET_CONVERSATIONS);
+    }
+
+    public ConversationRouter(Agent agent, MessageTemplate template) {
+        super(agent);
+        this.template = template;
+    }
+
+    @Override
+    public void action() {
+        ACLMessage msg = myAgent.receive(template);
+        if (msg == null) {
+            block();
+            return;
+        }
+        while (msg != null) {
+            route(msg);
+            msg = myAgent.receive(template);
+        }
+    }
+
+    private void route(ACLMessage msg) {
+        receivedMessages++;
+        receivedBytes += contentSize(msg);
+        String conversationId = msg.getConversationId();
+        if (isClosed(conversationId)) {
+            MarketLog.warn(myAgent.getLocalName() + " - discarded late reply for " + conversationId + " from "
+                    + msg.getSender().getLocalName());
+            return;
+        }
+        queues.computeIfAbsent(conversationId, id -> new ArrayDeque<>()).add(msg);
+
+        Behaviour waiter = waiters.get(conversationId);
+        if (waiter != null) {
+            waiter.restart();
+        }
+    }
+
+    // Registers the behaviour to be woken up when a message for the conversation arrives
+    public void open(String conversationId, Behaviour waiter) {
+        waiters.put(conversationId, waiter);
+    }
+
+    // Returns the next buffered message of the conversation that matches the template, or null
+    public ACLMessage poll(String conversationId, MessageTemplate filter) {
+        ArrayDeque<ACLMessage> queue = queues.get(conversationId);
+        if (queue == null) {
+            return null;
+        }
+        Iterator<ACLMessage> it = queue.iterator();
+        while (it.hasNext()) {
+            ACLMessage msg = it.next();
+            it.remove();
+            if (filter == null || filter.match(msg)) {
+                return msg;
+            }
+            MarketLog.warn(myAgent.getLocalName() + " - dropped unexpected "
+                    + ACLMessage.getPerformative(msg.getPerformative()) + " in " + conversationId + " from "
+                    + msg.getSender().getLocalName());
+        }
+        return null;
+    }
+
+    public long getReceivedMessages() {
+        return receivedMessages;
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    // Size of the content without copying it, binary or text
+    static int contentSize(ACLMessage msg) {
+        if (msg.hasByteSequenceContent()) {
+            return msg.getByteSequenceContent().length;
+        }
+        String content = msg.getContent();
+        return content == null ? 0 : content.length();
+    }
+
+    // Stops buffering the conversation and the earlier rounds of its phase; anything still queued or arriving
+    // later is discarded
+    public void close(String conversationId) {
+        waiters.remove(conversationId);
+        closedRounds.merge(MarketProtocol.phaseOf(conversationId), MarketProtocol.roundOf(conversationId),
+                Math::max);
+        queues.keySet().removeIf(this::isClosed);
+    }
+
+    private boolean isClosed(String conversationId) {
+        Integer closedRound = closedRounds.get(MarketProtocol.phaseOf(conversationId));
+        return closedRound != null && MarketProtocol.roundOf(conversationId) <= closedRound;
+    }
+
+    // Forgets every conversation, open or closed, and drops what is still buffered
+    public void reset() {
+        waiters.clear();
+        queues.clear();
+        closedRounds.clear();
+    }
+}
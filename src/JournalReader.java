@@ -0,0 +1,247 @@
+package projectAgents;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Streams the rounds of a RoundJournal through a read-only mapping of the file.
+// next fills the same Round for every record, so scanning millions of rounds keeps the heap flat.
+//
+// java -classpath src/ projectAgents.JournalReader journal.bin
+public class JournalReader implements Closeable {
+
+    private static final long WINDOW_SIZE = 64L << 20;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+
+    private final List<String> merchantNames = new ArrayList<>();
+    private int games;
+    private long seed;
+    private int totalRounds;
+    private double[] riskFactors = new double[0];
+
+    public JournalReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        fileSize = channel.size();
+        checkHeader(channel);
+        position = RoundJournal.FILE_HEADER_SIZE;
+    }
+
+    // Names of the merchants of the current game, indexed by the merchant ids of its rounds
+    public List<String> getMerchantNames() {
+        return Collections.unmodifiableList(merchantNames);
+    }
+
+    // Number of games started so far in the stream
+    public int getGames() {
+        return games;
+    }
+
+    // Seed, length and risk factors (empty when unknown) of the current game
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getTotalRounds() {
+        return totalRounds;
+    }
+
+    public double[] getRiskFactors() {
+        return riskFactors;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    // Reads the next round into the given record, merchant tables are applied on the way.
+    // Returns false at the end of the journal.
+    public boolean next(RoundJournal.Round into) throws IOException {
+        while (true) {
+            int length = recordLength();
+            if (length <= 0) {
+                return false;
+            }
+            ByteBuffer buffer = window(length);
+            byte type = buffer.get();
+            if (type == RoundJournal.ROUND) {
+                readRound(buffer, into);
+                position += 4 + length;
+                return true;
+            }
+            if (type == RoundJournal.GAME) {
+                readGame(buffer);
+            } else if (type == RoundJournal.MERCHANTS) {
+                readMerchants(buffer);
+            }
+            // Unknown record types from a newer writer are skipped
+            position += 4 + length;
+        }
+    }
+
+    private void readRound(ByteBuffer buffer, RoundJournal.Round into) {
+        into.round = buffer.getInt();
+        for (int i = 0; i < Spice.COUNT; i++) {
+            into.prices[i] = buffer.getInt();
+        }
+        for (int i = 0; i < Spice.COUNT; i++) {
+            into.stock[i] = buffer.getInt();
+        }
+        into.eventType = MarketCodec.eventName(buffer.get());
+        into.eventTarget = MarketCodec.spiceOf(buffer.get());
+        int count = buffer.getInt();
+        into.clear();
+        for (int entry = 0; entry < count; entry++) {
+            int merchant = buffer.getInt();
+            int walletDelta = buffer.getInt();
+            into.addEntry(merchant, walletDelta);
+            for (int i = 0; i < Spice.COUNT; i++) {
+                into.sold[entry * Spice.COUNT + i] = buffer.getInt();
+            }
+        }
+    }
+
+    private void readGame(ByteBuffer buffer) {
+        seed = buffer.getLong();
+        totalRounds = buffer.getInt();
+        riskFactors = new double[buffer.getInt()];
+        for (int i = 0; i < riskFactors.length; i++) {
+            riskFactors[i] = buffer.getDouble();
+        }
+        merchantNames.clear();
+        games++;
+    }
+
+    private void readMerchants(ByteBuffer buffer) {
+        merchantNames.clear();
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(name);
+            merchantNames.add(new String(name, StandardCharsets.UTF_8));
+        }
+    }
+
+    // Length of the record at the current position, 0 at the end of the data
+    private int recordLength() throws IOException {
+        if (position + 4 > fileSize) {
+            return 0;
+        }
+        int length = window(0).getInt((int) (position - windowStart));
+        return position + 4 + length > fileSize ? 0 : length;
+    }
+
+    // Returns the window positioned on the body of the record at the current position,
+    // moving the window when the record does not fit in it
+    private ByteBuffer window(int length) throws IOException {
+        long end = position + 4 + length;
+        if (window == null || position < windowStart || end > windowStart + window.capacity()) {
+            long size = Math.min(Math.max(WINDOW_SIZE, 4L + length), fileSize - position);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            windowStart = position;
+        }
+        window.position((int) (position - windowStart) + 4);
+        return window;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+    private static void checkHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RoundJournal.FILE_HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        if (header.remaining() < RoundJournal.FILE_HEADER_SIZE || header.getInt() != RoundJournal.MAGIC) {
+            throw new IllegalArgumentException("Not a round journal");
+        }
+        byte version = header.get();
+        if (version != RoundJournal.VERSION) {
+            throw new IllegalArgumentException("Unsupported journal version " + version);
+        }
+    }
+
+    // Position right after the last complete record, used by RoundJournal to append to an existing file
+    static long endOf(FileChannel channel) throws IOException {
+        checkHeader(channel);
+        long size = channel.size();
+        long position = RoundJournal.FILE_HEADER_SIZE;
+        ByteBuffer length = ByteBuffer.allocate(4);
+        while (position + 4 <= size) {
+            length.clear();
+            channel.read(length, position);
+            int recordLength = length.getInt(0);
+            if (recordLength <= 0 || position + 4 + recordLength > size) {
+                break;
+            }
+            position += 4 + recordLength;
+        }
+        return position;
+    }
+
+    // Prints a summary of a journal: games, rounds, average prices, events and coins paid out
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: JournalReader <journal file>");
+            return;
+        }
+
+        long rounds = 0;
+        long sales = 0;
+        long coins = 0;
+        long[] priceSum = new long[Spice.COUNT];
+        long[] soldSum = new long[Spice.COUNT];
+        long[] events = new long[MarketCodec.EVENTS.length];
+
+        long start = System.nanoTime();
+        RoundJournal.Round round = new RoundJournal.Round();
+        try (JournalReader reader = new JournalReader(Paths.get(args[0]))) {
+            while (reader.next(round)) {
+                rounds++;
+                events[MarketCodec.eventIndex(round.eventType)]++;
+                for (int i = 0; i < Spice.COUNT; i++) {
+                    priceSum[i] += round.prices[i];
+                }
+                for (int entry = 0; entry < round.count; entry++) {
+                    coins += round.walletDeltas[entry];
+                    for (int i = 0; i < Spice.COUNT; i++) {
+                        soldSum[i] += round.sold[entry * Spice.COUNT + i];
+                    }
+                }
+                sales += round.count;
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.println(reader.getGames() + " games, " + rounds + " rounds, " + sales + " sales, "
+                    + reader.getPosition() + " bytes read in " + String.format("%.2f", seconds) + "s ("
+                    + String.format("%.0f", rounds / seconds) + " rounds/s)");
+        }
+        if (rounds == 0) {
+            return;
+        }
+        for (Spice spice : Spice.VALUES) {
+            System.out.println(String.format("  %-10s average price %7.2f, sold %d", spice,
+                    (double) priceSum[spice.ordinal()] / rounds, soldSum[spice.ordinal()]));
+        }
+        for (int i = 0; i < events.length; i++) {
+            System.out.println(String.format("  %-12s %d rounds", i == 0 ? "no event" : MarketCodec.EVENTS[i],
+                    events[i]));
+        }
+        System.out.println("  " + coins + " coins paid to the merchants");
+    }
+}
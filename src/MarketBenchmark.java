@@ -0,0 +1,388 @@
+package projectAgents;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Micro benchmarks for the market and merchant hot paths.
+// Each benchmark is warmed up, then measured in fixed time iterations; the allocation profiler reads the
+// bytes allocated by the benchmark thread and the GC profiler the collections that happened meanwhile.
+// Results are printed as a table and can be written as JSON (one result per line, JMH-like layout).
+// With a baseline file the run fails when a benchmark got slower than the allowed tolerance.
+//
+// java -classpath src/ projectAgents.MarketBenchmark [filter=regex] [json=results.json]
+//      [baseline=previous.json] [tolerance=10] [warmup=3] [iterations=5] [time=500]
+public class MarketBenchmark {
+
+    private static final int[] MERCHANT_COUNTS = { 3, 100, 1000 };
+    private static final double Z_99 = 2.576;
+
+    private int warmupIterations = 3;
+    private int measurementIterations = 5;
+    private long iterationMillis = 500;
+
+    private final List<Result> results = new ArrayList<>();
+    private volatile long sink;
+
+    interface Workload {
+        long run();
+    }
+
+    static class Result {
+        final String benchmark;
+        final String params;
+        final double score;
+        final double scoreError;
+        final double bytesPerOp;
+        final long gcCount;
+        final long gcMillis;
+
+        Result(String benchmark, String params, double score, double scoreError, double bytesPerOp, long gcCount,
+                long gcMillis) {
+            this.benchmark = benchmark;
+            this.params = params;
+            this.score = score;
+            this.scoreError = scoreError;
+            this.bytesPerOp = bytesPerOp;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+        }
+
+        String key() {
+            return params.isEmpty() ? benchmark : benchmark + ":" + params;
+        }
+
+        String toJson() {
+            return "{\"benchmark\":\"" + benchmark + "\",\"params\":\"" + params + "\",\"mode\":\"avgt\","
+                    + "\"primaryMetric\":{\"score\":" + score + ",\"scoreError\":" + scoreError
+                    + ",\"scoreUnit\":\"ns/op\"},\"secondaryMetrics\":{"
+                    + "\"gc.alloc.rate.norm\":{\"score\":" + bytesPerOp + ",\"scoreUnit\":\"B/op\"},"
+                    + "\"gc.count\":{\"score\":" + gcCount + ",\"scoreUnit\":\"counts\"},"
+                    + "\"gc.time\":{\"score\":" + gcMillis + ",\"scoreUnit\":\"ms\"}}}";
+        }
+    }
+
+    private Result measure(String benchmark, String params, int opsPerInvocation, Workload workload) {
+        for (int i = 0; i < warmupIterations; i++) {
+            iterate(workload);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+        long allocatedBefore = allocatedBytes(threads, threadId);
+
+        double[] scores = new double[measurementIterations];
+        long totalInvocations = 0;
+        for (int i = 0; i < measurementIterations; i++) {
+            long start = System.nanoTime();
+            long invocations = iterate(workload);
+            long elapsed = System.nanoTime() - start;
+            scores[i] = (double) elapsed / (invocations * opsPerInvocation);
+            totalInvocations += invocations;
+        }
+
+        long allocatedAfter = allocatedBytes(threads, threadId);
+        double bytesPerOp = allocatedBefore < 0 ? Double.NaN
+                : (double) (allocatedAfter - allocatedBefore) / (totalInvocations * opsPerInvocation);
+
+        double mean = 0;
+        for (double score : scores) {
+            mean += score;
+        }
+        mean /= scores.length;
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean);
+        }
+        double error = scores.length > 1 ? Z_99 * Math.sqrt(variance / (scores.length - 1)) / Math.sqrt(scores.length)
+                : Double.NaN;
+
+        Result result = new Result(benchmark, params, mean, error, bytesPerOp, gcCount() - gcCountBefore,
+                gcMillis() - gcMillisBefore);
+        results.add(result);
+        System.out.println(String.format("%-34s %-16s %14.1f %10.1f %12.1f %6d", benchmark, params, mean, error,
+                bytesPerOp, result.gcCount));
+        return result;
+    }
+
+    private long iterate(Workload workload) {
+        long deadline = System.nanoTime() + iterationMillis * 1_000_000L;
+        long invocations = 0;
+        long value = 0;
+        do {
+            value += workload.run();
+            invocations++;
+        } while (System.nanoTime() < deadline);
+        sink += value;
+        return invocations;
+    }
+
+    private static long allocatedBytes(ThreadMXBean threads, long threadId) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+            if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) {
+                return hotspot.getThreadAllocatedBytes(threadId);
+            }
+        }
+        return -1;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    // A merchant in the middle of a game that just received a TRADE_ROUTE broadcast
+    private static MerchantStrategy merchant(double riskFactor) {
+        MerchantStrategy merchant = new MerchantStrategy(riskFactor);
+        merchant.setTotalRounds(MarketEngine.TOTAL_ROUNDS);
+        merchant.setCurrentRound(MarketEngine.TOTAL_ROUNDS / 2);
+        merchant.updateMarket(new int[] { 24, 6, 17, 9 }, "TRADE_ROUTE", Spice.NUTMEG);
+        return merchant;
+    }
+
+    public void run(Pattern filter) {
+        System.out.println(String.format("%-34s %-16s %14s %10s %12s %6s", "benchmark", "params", "ns/op", "error",
+                "B/op", "gc"));
+
+        if (filter.matcher("adjustPrices").find()) {
+            MarketEngine engine = new MarketEngine(1);
+            int[] report = { 30, 45, 30, 20 };
+            measure("adjustPrices", "", 1, () -> {
+                engine.resetStock();
+                engine.addStock(report);
+                engine.adjustPrices(3);
+                return engine.getPrices()[0];
+            });
+        }
+
+        if (filter.matcher("pricingRules").find()) {
+            for (int spices : new int[] { Spice.COUNT, 256 }) {
+                // A catalog of the given size with a spread of prices and stock levels, priced for 1000 merchants
+                List<String> table = new ArrayList<>();
+                int[] stock = new int[spices];
+                for (int i = 0; i < spices; i++) {
+                    table.add("S" + i + " " + (5 + i % 20) + " 10 5 30 3 2 0.9 1 0.8");
+                    stock[i] = (i * 7919) % 40000;
+                }
+                PricingRules rules = PricingRules.parseCatalog(table);
+                PricingRules.Scaled scaled = rules.forMerchants(1000);
+                long[] prices = new long[spices];
+                int[] published = new int[spices];
+                rules.initialPrices(prices);
+                measure("pricingRules", "spices=" + spices, 1, () -> {
+                    rules.adjust(prices, stock, scaled);
+                    rules.tax(prices);
+                    rules.publish(prices, published);
+                    return published[0];
+                });
+            }
+        }
+
+        if (filter.matcher("updateStock").find()) {
+            MarketEngine engine = new MarketEngine(1);
+            byte[] payload = MarketCodec.encodeStockReport(new int[] { 10, 15, 20, 12 });
+            int[] into = new int[Spice.COUNT];
+            measure("updateStock", "", 1, () -> {
+                engine.addStock(MarketCodec.decodeStockReport(payload, into));
+                return engine.getStock()[0];
+            });
+        }
+
+        if (filter.matcher("processSaleDecision").find()) {
+            MarketEngine engine = new MarketEngine(1);
+            MarketCodec.SaleDecision decision = new MarketCodec.SaleDecision();
+            decision.add(Spice.CRAVINHO, 3, 60);
+            decision.add(Spice.NUTMEG, 5, 75);
+            decision.add(Spice.CARDAMOM, 2, 20);
+            byte[] payload = MarketCodec.encodeSaleDecision(decision);
+            MarketCodec.SaleDecision into = new MarketCodec.SaleDecision();
+            measure("processSaleDecision", "", 1,
+                    () -> engine.processSaleDecision(MarketCodec.decodeSaleDecision(payload, into)));
+        }
+
+        if (filter.matcher("processBroadcast").find()) {
+            MerchantStrategy merchant = merchant(0.5);
+            byte[] payload = MarketCodec.encodePriceBroadcast(4, new int[] { 24, 6, 17, 9 }, "STORM", Spice.CINNAMON);
+            MarketCodec.PriceBroadcast into = new MarketCodec.PriceBroadcast();
+            measure("processBroadcast", "", 1, () -> {
+                MarketCodec.decodePriceBroadcast(payload, into);
+                merchant.updateMarket(into.prices, into.eventType, into.eventTarget);
+                return into.round;
+            });
+        }
+
+        if (filter.matcher("decideMarketSale").find()) {
+            MerchantStrategy merchant = merchant(0.5);
+            int[] initialStock = merchant.getStock().clone();
+            MarketCodec.SaleDecision decision = new MarketCodec.SaleDecision();
+            measure("decideMarketSale", "", 1, () -> {
+                System.arraycopy(initialStock, 0, merchant.getStock(), 0, Spice.COUNT);
+                return merchant.decideMarketSale(decision).count;
+            });
+        }
+
+        if (filter.matcher("chooseSpiceToSell").find()) {
+            MerchantStrategy merchant = merchant(0.1);
+            measure("chooseSpiceToSell", "", 1, () -> merchant.chooseSpiceToSell().ordinal());
+        }
+
+        if (filter.matcher("chooseSpiceToBuy").find()) {
+            MerchantStrategy merchant = merchant(0.1);
+            measure("chooseSpiceToBuy", "", 1, () -> merchant.chooseSpiceToBuy(Spice.NUTMEG).ordinal());
+        }
+
+        if (filter.matcher("clearOrders").find()) {
+            for (int merchants : MERCHANT_COUNTS) {
+                // Every merchant of a spread of risk factors submits its order for the same broadcast
+                MarketCodec.TradeProposal[] orders = new MarketCodec.TradeProposal[merchants];
+                for (int i = 0; i < merchants; i++) {
+                    orders[i] = merchant(0.1 + 0.8 * i / Math.max(1, merchants - 1))
+                            .proposeTrade(new MarketCodec.TradeProposal());
+                }
+                OrderBook book = new OrderBook(merchants);
+                measure("clearOrders", "merchants=" + merchants, 1, () -> {
+                    book.reset();
+                    for (MarketCodec.TradeProposal order : orders) {
+                        book.submit(order);
+                    }
+                    book.clear();
+                    return book.getTrades();
+                });
+            }
+        }
+
+        if (filter.matcher("round").find()) {
+            for (int merchants : MERCHANT_COUNTS) {
+                double[] riskFactors = new double[merchants];
+                for (int i = 0; i < merchants; i++) {
+                    riskFactors[i] = 0.1 + 0.8 * i / Math.max(1, merchants - 1);
+                }
+                long[] seed = { 0 };
+                // One invocation plays a whole game, the score is per round
+                measure("round", "merchants=" + merchants, MarketEngine.TOTAL_ROUNDS, () -> {
+                    MarketSimulation simulation = new MarketSimulation(riskFactors, MarketEngine.TOTAL_ROUNDS,
+                            seed[0]++);
+                    simulation.run();
+                    return simulation.getWinner();
+                });
+            }
+        }
+    }
+
+    public void writeJson(String path) throws IOException {
+        try (PrintWriter out = new PrintWriter(path, "UTF-8")) {
+            out.println("[");
+            for (int i = 0; i < results.size(); i++) {
+                out.println(results.get(i).toJson() + (i < results.size() - 1 ? "," : ""));
+            }
+            out.println("]");
+        }
+        System.out.println("Results written to " + path);
+    }
+
+    // Compares with a file written by writeJson and returns the number of regressions
+    public int compareWithBaseline(String path, double tolerancePercent) throws IOException {
+        Pattern line = Pattern.compile(
+                "\"benchmark\":\"([^\"]*)\",\"params\":\"([^\"]*)\".*?\"primaryMetric\":\\{\"score\":([^,]+),");
+        Map<String, Double> baseline = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String text;
+            while ((text = reader.readLine()) != null) {
+                Matcher matcher = line.matcher(text);
+                if (matcher.find()) {
+                    String key = matcher.group(2).isEmpty() ? matcher.group(1)
+                            : matcher.group(1) + ":" + matcher.group(2);
+                    baseline.put(key, Double.parseDouble(matcher.group(3)));
+                }
+            }
+        }
+
+        int regressions = 0;
+        for (Result result : results) {
+            Double previous = baseline.get(result.key());
+            if (previous == null) {
+                continue;
+            }
+            double change = (result.score - previous) / previous * 100;
+            if (change > tolerancePercent) {
+                regressions++;
+                System.out.println(String.format("REGRESSION %s: %.1f -> %.1f ns/op (+%.1f%%)", result.key(), previous,
+                        result.score, change));
+            }
+        }
+        return regressions;
+    }
+
+    public static void main(String[] args) throws IOException {
+        MarketBenchmark benchmark = new MarketBenchmark();
+        Pattern filter = Pattern.compile(".*");
+        String json = null;
+        String baseline = null;
+        double tolerance = 10;
+
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2) {
+                System.err.println("Ignoring argument " + arg + ", expected key=value");
+                continue;
+            }
+            switch (option[0]) {
+                case "filter":
+                    filter = Pattern.compile(option[1]);
+                    break;
+                case "json":
+                    json = option[1];
+                    break;
+                case "baseline":
+                    baseline = option[1];
+                    break;
+                case "tolerance":
+                    tolerance = Double.parseDouble(option[1]);
+                    break;
+                case "warmup":
+                    benchmark.warmupIterations = Integer.parseInt(option[1]);
+                    break;
+                case "iterations":
+                    benchmark.measurementIterations = Integer.parseInt(option[1]);
+                    break;
+                case "time":
+                    benchmark.iterationMillis = Long.parseLong(option[1]);
+                    break;
+                default:
+                    System.err.println("Ignoring unknown option " + option[0]);
+            }
+        }
+
+        benchmark.run(filter);
+        if (json != null) {
+            benchmark.writeJson(json);
+        }
+        if (baseline != null && benchmark.compareWithBaseline(baseline, tolerance) > 0) {
+            System.exit(1);
+        }
+    }
+}
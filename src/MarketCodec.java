@@ -0,0 +1,547 @@
+package projectAgents;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+// Fixed-layout binary records exchanged between the bazaar and the merchants.
+// Every record starts with a two byte header: the codec version and the record type.
+//
+//   STOCK_REPORT     header | int[4] quantities                                    18 bytes
+//   PRICE_BROADCAST  header | int round | int[4] prices | byte event | byte target  24 bytes
+//   SALE_DECISION    header | byte count | count * (byte spice | int qty | int value)
+//   TRADE_PROPOSAL   header | byte flag | byte sell | int qty | byte buy | int qty 13 bytes
+//   FILL_REPORT      header | int fills | byte sold | int qty | byte bought | int qty  16 bytes
+//   SHARD_STOCK      header | int merchants | int[4] quantities                    22 bytes
+//   ROUND_OPEN       header | int round | int total rounds | byte full stock       11 bytes
+//   ORDER_BATCH      header | int count | count * trade proposal body              6 + 11n bytes
+//   FILL_BATCH       header | int count | count * fill report body                 6 + 14n bytes
+//   SALE_BATCH       header | int count | count * sale decision body
+//   STOCK_DELTA      header | byte changed spices | int change per changed spice  3 to 19 bytes
+//
+// The batches carry the records of all the merchants of a MerchantPoolAgent in one message, in the order of
+// the merchants in the pool. A pool reports its stock as a SHARD_STOCK.
+//
+// A stock report is either full (STOCK_REPORT, or SHARD_STOCK from a pool) or a STOCK_DELTA with the
+// changes since the last report; the round open asks for a full one when the bazaar needs to resync.
+// Spices are written as their ordinal, a missing spice or event target is written as -1.
+public final class MarketCodec {
+
+    public static final byte VERSION = 1;
+
+    public static final byte STOCK_REPORT = 1;
+    public static final byte PRICE_BROADCAST = 2;
+    public static final byte SALE_DECISION = 3;
+    public static final byte TRADE_PROPOSAL = 4;
+    public static final byte FILL_REPORT = 5;
+    public static final byte SHARD_STOCK = 6;
+    public static final byte ROUND_OPEN = 7;
+    public static final byte ORDER_BATCH = 8;
+    public static final byte FILL_BATCH = 9;
+    public static final byte SALE_BATCH = 10;
+    public static final byte STOCK_DELTA = 11;
+
+    public static final String[] EVENTS = { null, "STORM", "SULTAN_TAX", "TRADE_ROUTE" };
+
+    private static final int HEADER_SIZE = 2;
+    private static final int STOCK_REPORT_SIZE = HEADER_SIZE + 4 * Spice.COUNT;
+    private static final int PRICE_BROADCAST_SIZE = HEADER_SIZE + 4 + 4 * Spice.COUNT + 2;
+    private static final int SALE_ENTRY_SIZE = 9;
+    private static final int TRADE_PROPOSAL_SIZE = HEADER_SIZE + 11;
+    private static final int FILL_REPORT_SIZE = HEADER_SIZE + 14;
+    private static final int SHARD_STOCK_SIZE = HEADER_SIZE + 4 + 4 * Spice.COUNT;
+    private static final int ROUND_OPEN_SIZE = HEADER_SIZE + 9;
+    private static final int ORDER_ENTRY_SIZE = 11;
+    private static final int FILL_ENTRY_SIZE = 14;
+    private static final int BATCH_HEADER_SIZE = HEADER_SIZE + 4;
+
+    private MarketCodec() {
+    }
+
+    public static class PriceBroadcast {
+        public int round;
+        public final int[] prices = new int[Spice.COUNT];
+        public String eventType;
+        public Spice eventTarget;
+    }
+
+    public static class SaleDecision {
+        public int count;
+        public final int[] spices = new int[Spice.COUNT];
+        public final int[] quantities = new int[Spice.COUNT];
+        public final int[] values = new int[Spice.COUNT];
+
+        public void add(Spice spice, int quantity, int value) {
+            spices[count] = spice.ordinal();
+            quantities[count] = quantity;
+            values[count] = value;
+            count++;
+        }
+
+        public boolean isHold() {
+            return count == 0;
+        }
+
+        public void clear() {
+            count = 0;
+        }
+    }
+
+    public static class TradeProposal {
+        public boolean noTrade;
+        public Spice spiceToSell;
+        public int quantityToSell;
+        public Spice spiceToBuy;
+        public int quantityToBuy;
+
+        @Override
+        public String toString() {
+            if (noTrade) {
+                return "NO_TRADE";
+            }
+            return spiceToSell + "," + quantityToSell + "," + spiceToBuy + "," + quantityToBuy;
+        }
+    }
+
+    // What a merchant order traded when the bazaar cleared the order book, summed over all its matches
+    public static class FillReport {
+        public int fills;
+        public Spice spiceSold;
+        public int quantitySold;
+        public Spice spiceBought;
+        public int quantityBought;
+
+        public boolean isEmpty() {
+            return fills == 0;
+        }
+
+        public void clear() {
+            fills = 0;
+            spiceSold = null;
+            quantitySold = 0;
+            spiceBought = null;
+            quantityBought = 0;
+        }
+
+        @Override
+        public String toString() {
+            if (isEmpty()) {
+                return "NO_FILL";
+            }
+            return spiceSold + "," + quantitySold + "," + spiceBought + "," + quantityBought + " in " + fills
+                    + " fills";
+        }
+    }
+
+    // Opens a round and asks for the stock report, it also tells the length of the game.
+    // fullStock asks for the whole stock instead of the changes since the last report.
+    public static class RoundOpen {
+        public int round;
+        public int totalRounds;
+        public boolean fullStock;
+    }
+
+    // Stock totals of a group of merchants: a bazaar shard, merged by the coordinator before prices are
+    // adjusted, or a merchant pool, added by the bazaar like any stock report
+    public static class ShardStock {
+        public int merchants;
+        public final int[] stock = new int[Spice.COUNT];
+    }
+
+    public static byte[] encodeStockReport(int[] quantities) {
+        ByteBuffer buffer = header(STOCK_REPORT_SIZE, STOCK_REPORT);
+        for (int i = 0; i < Spice.COUNT; i++) {
+            buffer.putInt(quantities[i]);
+        }
+        return buffer.array();
+    }
+
+    public static int[] decodeStockReport(byte[] data, int[] into) {
+        ByteBuffer buffer = open(data, STOCK_REPORT);
+        try {
+            for (int i = 0; i < Spice.COUNT; i++) {
+                into[i] = buffer.getInt();
+            }
+        } catch (BufferUnderflowException e) {
+            throw truncated(STOCK_REPORT);
+        }
+        return into;
+    }
+
+    // Writes the spices whose quantity changed since the reported stock, which is then updated to the stock
+    public static byte[] encodeStockDelta(int[] stock, int[] reported) {
+        int changed = 0;
+        int count = 0;
+        for (int i = 0; i < Spice.COUNT; i++) {
+            if (stock[i] != reported[i]) {
+                changed |= 1 << i;
+                count++;
+            }
+        }
+        ByteBuffer buffer = header(HEADER_SIZE + 1 + 4 * count, STOCK_DELTA);
+        buffer.put((byte) changed);
+        for (int i = 0; i < Spice.COUNT; i++) {
+            if (stock[i] != reported[i]) {
+                buffer.putInt(stock[i] - reported[i]);
+                reported[i] = stock[i];
+            }
+        }
+        return buffer.array();
+    }
+
+    // Reads the change of every spice, 0 for the spices that did not change
+    public static int[] decodeStockDelta(byte[] data, int[] into) {
+        ByteBuffer buffer = open(data, STOCK_DELTA);
+        try {
+            int changed = buffer.get();
+            if ((changed & ~((1 << Spice.COUNT) - 1)) != 0) {
+                throw new IllegalArgumentException("Invalid changed spices " + changed);
+            }
+            for (int i = 0; i < Spice.COUNT; i++) {
+                into[i] = (changed & (1 << i)) != 0 ? buffer.getInt() : 0;
+            }
+        } catch (BufferUnderflowException e) {
+            throw truncated(STOCK_DELTA);
+        }
+        return into;
+    }
+
+    public static byte[] encodePriceBroadcast(int round, int[] prices, String eventType, Spice eventTarget) {
+        ByteBuffer buffer = header(PRICE_BROADCAST_SIZE, PRICE_BROADCAST);
+        buffer.putInt(round);
+        for (int i = 0; i < Spice.COUNT; i++) {
+            buffer.putInt(prices[i]);
+        }
+        buffer.put((byte) eventIndex(eventType));
+        buffer.put((byte) spiceIndex(eventTarget));
+        return buffer.array();
+    }
+
+    public static PriceBroadcast decodePriceBroadcast(byte[] data, PriceBroadcast into) {
+        ByteBuffer buffer = open(data, PRICE_BROADCAST);
+        try {
+            into.round = buffer.getInt();
+            for (int i = 0; i < Spice.COUNT; i++) {
+                into.prices[i] = buffer.getInt();
+            }
+            into.eventType = eventName(buffer.get());
+            into.eventTarget = spiceOf(buffer.get());
+        } catch (BufferUnderflowException e) {
+            throw truncated(PRICE_BROADCAST);
+        }
+        return into;
+    }
+
+    public static byte[] encodeSaleDecision(SaleDecision decision) {
+        ByteBuffer buffer = header(HEADER_SIZE + saleSize(decision), SALE_DECISION);
+        writeSale(buffer, decision);
+        return buffer.array();
+    }
+
+    public static SaleDecision decodeSaleDecision(byte[] data, SaleDecision into) {
+        ByteBuffer buffer = open(data, SALE_DECISION);
+        try {
+            readSale(buffer, into);
+        } catch (BufferUnderflowException e) {
+            throw truncated(SALE_DECISION);
+        }
+        return into;
+    }
+
+    private static int saleSize(SaleDecision decision) {
+        return 1 + decision.count * SALE_ENTRY_SIZE;
+    }
+
+    private static void writeSale(ByteBuffer buffer, SaleDecision decision) {
+        buffer.put((byte) decision.count);
+        for (int i = 0; i < decision.count; i++) {
+            buffer.put((byte) decision.spices[i]);
+            buffer.putInt(decision.quantities[i]);
+            buffer.putInt(decision.values[i]);
+        }
+    }
+
+    private static void readSale(ByteBuffer buffer, SaleDecision into) {
+        int count = buffer.get();
+        if (count < 0 || count > Spice.COUNT) {
+            throw new IllegalArgumentException("Invalid sale entry count " + count);
+        }
+        into.count = count;
+        for (int i = 0; i < count; i++) {
+            into.spices[i] = Spice.fromIndex(buffer.get()).ordinal();
+            into.quantities[i] = buffer.getInt();
+            into.values[i] = buffer.getInt();
+        }
+    }
+
+    public static byte[] encodeTradeProposal(TradeProposal proposal) {
+        ByteBuffer buffer = header(TRADE_PROPOSAL_SIZE, TRADE_PROPOSAL);
+        writeOrder(buffer, proposal);
+        return buffer.array();
+    }
+
+    public static TradeProposal decodeTradeProposal(byte[] data, TradeProposal into) {
+        ByteBuffer buffer = open(data, TRADE_PROPOSAL);
+        try {
+            readOrder(buffer, into);
+        } catch (BufferUnderflowException e) {
+            throw truncated(TRADE_PROPOSAL);
+        }
+        return into;
+    }
+
+    private static void writeOrder(ByteBuffer buffer, TradeProposal proposal) {
+        buffer.put((byte) (proposal.noTrade ? 0 : 1));
+        buffer.put((byte) spiceIndex(proposal.spiceToSell));
+        buffer.putInt(proposal.quantityToSell);
+        buffer.put((byte) spiceIndex(proposal.spiceToBuy));
+        buffer.putInt(proposal.quantityToBuy);
+    }
+
+    private static void readOrder(ByteBuffer buffer, TradeProposal into) {
+        into.noTrade = buffer.get() == 0;
+        into.spiceToSell = spiceOf(buffer.get());
+        into.quantityToSell = buffer.getInt();
+        into.spiceToBuy = spiceOf(buffer.get());
+        into.quantityToBuy = buffer.getInt();
+    }
+
+    public static byte[] encodeFillReport(FillReport fill) {
+        ByteBuffer buffer = header(FILL_REPORT_SIZE, FILL_REPORT);
+        writeFill(buffer, fill);
+        return buffer.array();
+    }
+
+    public static FillReport decodeFillReport(byte[] data, FillReport into) {
+        ByteBuffer buffer = open(data, FILL_REPORT);
+        try {
+            readFill(buffer, into);
+        } catch (BufferUnderflowException e) {
+            throw truncated(FILL_REPORT);
+        }
+        return into;
+    }
+
+    private static void writeFill(ByteBuffer buffer, FillReport fill) {
+        buffer.putInt(fill.fills);
+        buffer.put((byte) spiceIndex(fill.spiceSold));
+        buffer.putInt(fill.quantitySold);
+        buffer.put((byte) spiceIndex(fill.spiceBought));
+        buffer.putInt(fill.quantityBought);
+    }
+
+    private static void readFill(ByteBuffer buffer, FillReport into) {
+        into.fills = buffer.getInt();
+        into.spiceSold = spiceOf(buffer.get());
+        into.quantitySold = buffer.getInt();
+        into.spiceBought = spiceOf(buffer.get());
+        into.quantityBought = buffer.getInt();
+    }
+
+    public static byte[] encodeShardStock(int merchants, int[] stock) {
+        ByteBuffer buffer = header(SHARD_STOCK_SIZE, SHARD_STOCK);
+        buffer.putInt(merchants);
+        for (int i = 0; i < Spice.COUNT; i++) {
+            buffer.putInt(stock[i]);
+        }
+        return buffer.array();
+    }
+
+    public static ShardStock decodeShardStock(byte[] data, ShardStock into) {
+        ByteBuffer buffer = open(data, SHARD_STOCK);
+        try {
+            int merchants = buffer.getInt();
+            if (merchants < 0) {
+                throw new IllegalArgumentException("Invalid merchant count " + merchants);
+            }
+            into.merchants = merchants;
+            for (int i = 0; i < Spice.COUNT; i++) {
+                into.stock[i] = buffer.getInt();
+            }
+        } catch (BufferUnderflowException e) {
+            throw truncated(SHARD_STOCK);
+        }
+        return into;
+    }
+
+    public static byte[] encodeRoundOpen(int round, int totalRounds, boolean fullStock) {
+        ByteBuffer buffer = header(ROUND_OPEN_SIZE, ROUND_OPEN);
+        buffer.putInt(round);
+        buffer.putInt(totalRounds);
+        buffer.put((byte) (fullStock ? 1 : 0));
+        return buffer.array();
+    }
+
+    public static RoundOpen decodeRoundOpen(byte[] data, RoundOpen into) {
+        ByteBuffer buffer = open(data, ROUND_OPEN);
+        try {
+            into.round = buffer.getInt();
+            into.totalRounds = buffer.getInt();
+            into.fullStock = buffer.get() != 0;
+        } catch (BufferUnderflowException e) {
+            throw truncated(ROUND_OPEN);
+        }
+        return into;
+    }
+
+    public static byte[] encodeOrderBatch(TradeProposal[] orders, int count) {
+        ByteBuffer buffer = header(BATCH_HEADER_SIZE + count * ORDER_ENTRY_SIZE, ORDER_BATCH);
+        buffer.putInt(count);
+        for (int i = 0; i < count; i++) {
+            writeOrder(buffer, orders[i]);
+        }
+        return buffer.array();
+    }
+
+    public static byte[] encodeFillBatch(FillReport[] fills, int count) {
+        ByteBuffer buffer = header(BATCH_HEADER_SIZE + count * FILL_ENTRY_SIZE, FILL_BATCH);
+        buffer.putInt(count);
+        for (int i = 0; i < count; i++) {
+            writeFill(buffer, fills[i]);
+        }
+        return buffer.array();
+    }
+
+    public static byte[] encodeSaleBatch(SaleDecision[] decisions, int count) {
+        int size = BATCH_HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            size += saleSize(decisions[i]);
+        }
+        ByteBuffer buffer = header(size, SALE_BATCH);
+        buffer.putInt(count);
+        for (int i = 0; i < count; i++) {
+            writeSale(buffer, decisions[i]);
+        }
+        return buffer.array();
+    }
+
+    public static BatchReader readBatch(byte[] data, byte type) {
+        return new BatchReader(data, type);
+    }
+
+    // Reads the entries of a batch one after the other into a record reused by the caller
+    public static final class BatchReader {
+        private final ByteBuffer buffer;
+        private final byte type;
+        private final int size;
+        private int read;
+
+        private BatchReader(byte[] data, byte type) {
+            this.buffer = open(data, type);
+            this.type = type;
+            try {
+                size = buffer.getInt();
+            } catch (BufferUnderflowException e) {
+                throw truncated(type);
+            }
+            // Every entry takes at least one byte, a count above that is a corrupt record
+            if (size < 0 || size > buffer.remaining()) {
+                throw new IllegalArgumentException("Invalid batch size " + size);
+            }
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean hasNext() {
+            return read < size;
+        }
+
+        public TradeProposal nextOrder(TradeProposal into) {
+            try {
+                next(ORDER_BATCH);
+                readOrder(buffer, into);
+            } catch (BufferUnderflowException e) {
+                throw truncated(type);
+            }
+            return into;
+        }
+
+        public FillReport nextFill(FillReport into) {
+            try {
+                next(FILL_BATCH);
+                readFill(buffer, into);
+            } catch (BufferUnderflowException e) {
+                throw truncated(type);
+            }
+            return into;
+        }
+
+        public SaleDecision nextSale(SaleDecision into) {
+            try {
+                next(SALE_BATCH);
+                readSale(buffer, into);
+            } catch (BufferUnderflowException e) {
+                throw truncated(type);
+            }
+            return into;
+        }
+
+        private void next(byte expectedType) {
+            if (type != expectedType) {
+                throw new IllegalArgumentException("Expected record type " + expectedType + " but got " + type);
+            }
+            if (read == size) {
+                throw new IllegalStateException("No more entries in the batch");
+            }
+            read++;
+        }
+    }
+
+    public static byte recordType(byte[] data) {
+        if (data == null || data.length < HEADER_SIZE) {
+            return 0;
+        }
+        return data[1];
+    }
+
+    static int spiceIndex(Spice spice) {
+        return spice == null ? -1 : spice.ordinal();
+    }
+
+    static Spice spiceOf(int index) {
+        return index < 0 ? null : Spice.fromIndex(index);
+    }
+
+    static int eventIndex(String eventType) {
+        for (int i = 1; i < EVENTS.length; i++) {
+            if (EVENTS[i].equals(eventType)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    static String eventName(int index) {
+        if (index < 0 || index >= EVENTS.length) {
+            throw new IllegalArgumentException("Invalid event code " + index);
+        }
+        return EVENTS[index];
+    }
+
+    private static ByteBuffer header(int size, byte type) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(VERSION);
+        buffer.put(type);
+        return buffer;
+    }
+
+    private static ByteBuffer open(byte[] data, byte expectedType) {
+        if (data == null || data.length < HEADER_SIZE) {
+            throw truncated(expectedType);
+        }
+        if (data[0] != VERSION) {
+            throw new IllegalArgumentException("Unsupported codec version " + data[0]);
+        }
+        if (data[1] != expectedType) {
+            throw new IllegalArgumentException("Expected record type " + expectedType + " but got " + data[1]);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.position(HEADER_SIZE);
+        return buffer;
+    }
+
+    private static IllegalArgumentException truncated(byte type) {
+        return new IllegalArgumentException("Truncated record of type " + type);
+    }
+}
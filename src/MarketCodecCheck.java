@@ -0,0 +1,306 @@
+package projectAgents;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Checks every MarketCodec record: encoded and decoded again it gives back its values, and a malformed
+// record (truncated, wrong version or type, invalid counts, masks and codes) is rejected with the codec's
+// IllegalArgumentException instead of being read as something else. Exits with 1 when a check fails.
+//
+// java -classpath src/ projectAgents.MarketCodecCheck [merchants] [seed]
+public class MarketCodecCheck {
+
+    private static int checks;
+    private static final List<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) {
+        int merchants = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+
+        merchantRecords(merchants, new Random(seed));
+        roundTrips();
+        malformedRecords();
+
+        System.out.println(checks + " checks, " + failures.size() + " failed");
+        for (String failure : failures) {
+            System.out.println("  FAILED " + failure);
+        }
+        if (!failures.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    private static void check(String name, boolean passed) {
+        checks++;
+        if (!passed) {
+            failures.add(name);
+        }
+    }
+
+    // The decode must throw an IllegalArgumentException whose message contains the expected text
+    private static void rejects(String name, String expected, Runnable decode) {
+        checks++;
+        try {
+            decode.run();
+            failures.add(name + ": accepted");
+        } catch (IllegalArgumentException e) {
+            if (e.getMessage() == null || !e.getMessage().contains(expected)) {
+                failures.add(name + ": expected \"" + expected + "\" but got \"" + e.getMessage() + "\"");
+            }
+        } catch (RuntimeException e) {
+            failures.add(name + ": threw " + e);
+        }
+    }
+
+    // Stock reports and sale decisions of random merchants, and one price broadcast
+    private static void merchantRecords(int merchants, Random random) {
+        int[] prices = new int[Spice.COUNT];
+        for (int i = 0; i < Spice.COUNT; i++) {
+            prices[i] = 5 + random.nextInt(30);
+        }
+        int[] stock = new int[Spice.COUNT];
+        int[] decoded = new int[Spice.COUNT];
+        MarketCodec.SaleDecision decision = new MarketCodec.SaleDecision();
+        for (int m = 0; m < merchants; m++) {
+            MarketCodec.SaleDecision expected = new MarketCodec.SaleDecision();
+            for (int i = 0; i < Spice.COUNT; i++) {
+                stock[i] = random.nextInt(50);
+                int quantity = random.nextInt(3) == 0 ? 0 : random.nextInt(20);
+                if (quantity > 0) {
+                    expected.add(Spice.VALUES[i], quantity, quantity * prices[i]);
+                }
+            }
+            MarketCodec.decodeStockReport(MarketCodec.encodeStockReport(stock), decoded);
+            check("stock report of merchant " + m, Arrays.equals(decoded, stock));
+            MarketCodec.decodeSaleDecision(MarketCodec.encodeSaleDecision(expected), decision);
+            check("sale decision of merchant " + m, sameSale(decision, expected));
+        }
+
+        MarketCodec.PriceBroadcast broadcast = MarketCodec.decodePriceBroadcast(
+                MarketCodec.encodePriceBroadcast(4, prices, "TRADE_ROUTE", Spice.NUTMEG),
+                new MarketCodec.PriceBroadcast());
+        check("price broadcast", broadcast.round == 4 && Arrays.equals(broadcast.prices, prices)
+                && "TRADE_ROUTE".equals(broadcast.eventType) && broadcast.eventTarget == Spice.NUTMEG);
+        broadcast = MarketCodec.decodePriceBroadcast(MarketCodec.encodePriceBroadcast(0, prices, null, null),
+                broadcast);
+        check("price broadcast without event", broadcast.eventType == null && broadcast.eventTarget == null);
+    }
+
+    private static void roundTrips() {
+        MarketCodec.TradeProposal proposal = proposal();
+        MarketCodec.TradeProposal decoded = MarketCodec.decodeTradeProposal(
+                MarketCodec.encodeTradeProposal(proposal), new MarketCodec.TradeProposal());
+        check("trade proposal", proposal.toString().equals(decoded.toString()));
+        MarketCodec.TradeProposal noTrade = new MarketCodec.TradeProposal();
+        noTrade.noTrade = true;
+        check("no trade proposal", MarketCodec.decodeTradeProposal(MarketCodec.encodeTradeProposal(noTrade),
+                decoded).noTrade);
+
+        MarketCodec.FillReport fill = fill();
+        MarketCodec.FillReport decodedFill = MarketCodec.decodeFillReport(MarketCodec.encodeFillReport(fill),
+                new MarketCodec.FillReport());
+        check("fill report", fill.toString().equals(decodedFill.toString()));
+        check("empty fill report", MarketCodec.decodeFillReport(
+                MarketCodec.encodeFillReport(new MarketCodec.FillReport()), decodedFill).isEmpty());
+
+        check("hold sale decision", MarketCodec.decodeSaleDecision(
+                MarketCodec.encodeSaleDecision(new MarketCodec.SaleDecision()), sale()).isHold());
+
+        int[] stock = { 12, 0, 40, 7 };
+        MarketCodec.ShardStock shard = MarketCodec.decodeShardStock(MarketCodec.encodeShardStock(250, stock),
+                new MarketCodec.ShardStock());
+        check("shard stock", shard.merchants == 250 && Arrays.equals(shard.stock, stock));
+
+        MarketCodec.RoundOpen open = MarketCodec.decodeRoundOpen(MarketCodec.encodeRoundOpen(3, 10, true),
+                new MarketCodec.RoundOpen());
+        check("round open", open.round == 3 && open.totalRounds == 10 && open.fullStock);
+        check("round open for the changes",
+                !MarketCodec.decodeRoundOpen(MarketCodec.encodeRoundOpen(3, 10, false), open).fullStock);
+
+        int[] reported = { stock[0], stock[1] + 3, stock[2], stock[3] - 7 };
+        byte[] delta = MarketCodec.encodeStockDelta(stock, reported);
+        int[] change = MarketCodec.decodeStockDelta(delta, new int[Spice.COUNT]);
+        check("stock delta", delta.length == 11 && Arrays.equals(change, new int[] { 0, -3, 0, 7 })
+                && Arrays.equals(reported, stock));
+        // Nothing changed: only the empty mask is sent and every change reads as 0
+        byte[] unchanged = MarketCodec.encodeStockDelta(stock, reported);
+        check("stock delta with an empty mask", unchanged.length == 3 && unchanged[2] == 0
+                && Arrays.equals(MarketCodec.decodeStockDelta(unchanged, change), new int[Spice.COUNT]));
+
+        MarketCodec.BatchReader orderBatch = MarketCodec.readBatch(MarketCodec.encodeOrderBatch(
+                new MarketCodec.TradeProposal[] { proposal, noTrade }, 2), MarketCodec.ORDER_BATCH);
+        check("order batch", orderBatch.size() == 2
+                && proposal.toString().equals(orderBatch.nextOrder(decoded).toString())
+                && orderBatch.nextOrder(decoded).noTrade && !orderBatch.hasNext());
+
+        MarketCodec.BatchReader fillBatch = MarketCodec.readBatch(MarketCodec.encodeFillBatch(
+                new MarketCodec.FillReport[] { fill, new MarketCodec.FillReport() }, 2), MarketCodec.FILL_BATCH);
+        check("fill batch", fill.toString().equals(fillBatch.nextFill(decodedFill).toString())
+                && fillBatch.nextFill(decodedFill).isEmpty() && !fillBatch.hasNext());
+
+        MarketCodec.SaleDecision decodedSale = new MarketCodec.SaleDecision();
+        MarketCodec.BatchReader saleBatch = MarketCodec.readBatch(MarketCodec.encodeSaleBatch(
+                new MarketCodec.SaleDecision[] { new MarketCodec.SaleDecision(), sale() }, 2),
+                MarketCodec.SALE_BATCH);
+        check("sale batch", saleBatch.nextSale(decodedSale).isHold()
+                && sameSale(saleBatch.nextSale(decodedSale), sale()) && !saleBatch.hasNext());
+
+        check("empty order batch", MarketCodec.readBatch(MarketCodec.encodeOrderBatch(
+                new MarketCodec.TradeProposal[0], 0), MarketCodec.ORDER_BATCH).size() == 0);
+    }
+
+    private static void malformedRecords() {
+        int[] stock = { 12, 0, 40, 7 };
+        byte[] stockReport = MarketCodec.encodeStockReport(stock);
+
+        // Every record cut short by one byte
+        truncated("stock report", stockReport, data -> MarketCodec.decodeStockReport(data, new int[Spice.COUNT]));
+        truncated("price broadcast", MarketCodec.encodePriceBroadcast(1, stock, "STORM", Spice.CINNAMON),
+                data -> MarketCodec.decodePriceBroadcast(data, new MarketCodec.PriceBroadcast()));
+        truncated("sale decision", MarketCodec.encodeSaleDecision(sale()),
+                data -> MarketCodec.decodeSaleDecision(data, new MarketCodec.SaleDecision()));
+        truncated("trade proposal", MarketCodec.encodeTradeProposal(proposal()),
+                data -> MarketCodec.decodeTradeProposal(data, new MarketCodec.TradeProposal()));
+        truncated("fill report", MarketCodec.encodeFillReport(fill()),
+                data -> MarketCodec.decodeFillReport(data, new MarketCodec.FillReport()));
+        truncated("shard stock", MarketCodec.encodeShardStock(3, stock),
+                data -> MarketCodec.decodeShardStock(data, new MarketCodec.ShardStock()));
+        truncated("round open", MarketCodec.encodeRoundOpen(1, 10, false),
+                data -> MarketCodec.decodeRoundOpen(data, new MarketCodec.RoundOpen()));
+        truncated("stock delta", MarketCodec.encodeStockDelta(stock, new int[Spice.COUNT]),
+                data -> MarketCodec.decodeStockDelta(data, new int[Spice.COUNT]));
+        truncated("order batch count", new byte[] { MarketCodec.VERSION, MarketCodec.ORDER_BATCH, 0, 0 },
+                data -> MarketCodec.readBatch(data, MarketCodec.ORDER_BATCH));
+
+        // Header problems
+        rejects("missing record", "Truncated record of type 1", () -> MarketCodec.decodeStockReport(null,
+                new int[Spice.COUNT]));
+        rejects("record shorter than its header", "Truncated record of type 1",
+                () -> MarketCodec.decodeStockReport(new byte[] { MarketCodec.VERSION }, new int[Spice.COUNT]));
+        byte[] otherVersion = stockReport.clone();
+        otherVersion[0] = MarketCodec.VERSION + 1;
+        rejects("unknown version", "Unsupported codec version " + otherVersion[0],
+                () -> MarketCodec.decodeStockReport(otherVersion, new int[Spice.COUNT]));
+        rejects("wrong record type", "Expected record type " + MarketCodec.PRICE_BROADCAST + " but got "
+                + MarketCodec.STOCK_REPORT,
+                () -> MarketCodec.decodePriceBroadcast(stockReport, new MarketCodec.PriceBroadcast()));
+        rejects("batch of another type", "Expected record type " + MarketCodec.FILL_BATCH,
+                () -> MarketCodec.readBatch(MarketCodec.encodeOrderBatch(new MarketCodec.TradeProposal[0], 0),
+                        MarketCodec.FILL_BATCH));
+        check("record type of a missing record", MarketCodec.recordType(null) == 0
+                && MarketCodec.recordType(new byte[1]) == 0);
+
+        // Invalid values inside a record of the right length
+        byte[] badMask = { MarketCodec.VERSION, MarketCodec.STOCK_DELTA, (byte) (1 << Spice.COUNT) };
+        rejects("stock delta mask beyond the spices", "Invalid changed spices",
+                () -> MarketCodec.decodeStockDelta(badMask, new int[Spice.COUNT]));
+        byte[] shortDelta = { MarketCodec.VERSION, MarketCodec.STOCK_DELTA, 0b11, 0, 0, 0, 1 };
+        rejects("stock delta with fewer changes than its mask", "Truncated record of type "
+                + MarketCodec.STOCK_DELTA, () -> MarketCodec.decodeStockDelta(shortDelta, new int[Spice.COUNT]));
+
+        byte[] tooManySales = MarketCodec.encodeSaleDecision(sale());
+        tooManySales[2] = (byte) (Spice.COUNT + 1);
+        rejects("sale decision with too many entries", "Invalid sale entry count",
+                () -> MarketCodec.decodeSaleDecision(tooManySales, new MarketCodec.SaleDecision()));
+        byte[] negativeSales = MarketCodec.encodeSaleDecision(sale());
+        negativeSales[2] = -1;
+        rejects("sale decision with a negative count", "Invalid sale entry count",
+                () -> MarketCodec.decodeSaleDecision(negativeSales, new MarketCodec.SaleDecision()));
+        byte[] badSpice = MarketCodec.encodeSaleDecision(sale());
+        badSpice[3] = (byte) Spice.COUNT;
+        rejects("sale of an unknown spice", "Invalid spice index",
+                () -> MarketCodec.decodeSaleDecision(badSpice, new MarketCodec.SaleDecision()));
+        byte[] negativeMerchants = MarketCodec.encodeShardStock(1, stock);
+        negativeMerchants[2] = -1;
+        rejects("shard stock with a negative merchant count", "Invalid merchant count",
+                () -> MarketCodec.decodeShardStock(negativeMerchants, new MarketCodec.ShardStock()));
+        byte[] badEvent = MarketCodec.encodePriceBroadcast(1, stock, null, null);
+        badEvent[badEvent.length - 2] = (byte) MarketCodec.EVENTS.length;
+        rejects("unknown event", "Invalid event code",
+                () -> MarketCodec.decodePriceBroadcast(badEvent, new MarketCodec.PriceBroadcast()));
+
+        // Batches whose count does not match their entries
+        byte[] oversized = MarketCodec.encodeOrderBatch(new MarketCodec.TradeProposal[] { proposal() }, 1);
+        oversized[5] = 100;
+        rejects("batch counting more entries than its bytes", "Invalid batch size",
+                () -> MarketCodec.readBatch(oversized, MarketCodec.ORDER_BATCH));
+        byte[] negative = MarketCodec.encodeOrderBatch(new MarketCodec.TradeProposal[0], 0);
+        negative[2] = -1;
+        rejects("batch with a negative count", "Invalid batch size",
+                () -> MarketCodec.readBatch(negative, MarketCodec.ORDER_BATCH));
+        byte[] cutBatch = Arrays.copyOf(MarketCodec.encodeOrderBatch(
+                new MarketCodec.TradeProposal[] { proposal(), proposal() }, 2), 6 + 11 + 5);
+        rejects("batch cut inside an entry", "Truncated record of type " + MarketCodec.ORDER_BATCH, () -> {
+            MarketCodec.BatchReader batch = MarketCodec.readBatch(cutBatch, MarketCodec.ORDER_BATCH);
+            MarketCodec.TradeProposal order = new MarketCodec.TradeProposal();
+            batch.nextOrder(order);
+            batch.nextOrder(order);
+        });
+        rejects("fill read from an order batch", "Expected record type " + MarketCodec.FILL_BATCH,
+                () -> MarketCodec.readBatch(MarketCodec.encodeOrderBatch(
+                        new MarketCodec.TradeProposal[] { proposal() }, 1), MarketCodec.ORDER_BATCH)
+                        .nextFill(new MarketCodec.FillReport()));
+
+        checks++;
+        try {
+            MarketCodec.BatchReader batch = MarketCodec.readBatch(MarketCodec.encodeOrderBatch(
+                    new MarketCodec.TradeProposal[] { proposal() }, 1), MarketCodec.ORDER_BATCH);
+            MarketCodec.TradeProposal order = new MarketCodec.TradeProposal();
+            batch.nextOrder(order);
+            batch.nextOrder(order);
+            failures.add("read past the end of a batch: accepted");
+        } catch (IllegalStateException e) {
+            // Expected, the caller asked for an entry the batch does not have
+        }
+    }
+
+    private interface Decoder {
+        void decode(byte[] data);
+    }
+
+    private static void truncated(String name, byte[] record, Decoder decoder) {
+        byte[] cut = Arrays.copyOf(record, record.length - 1);
+        rejects(name + " cut short", "Truncated record of type " + record[1], () -> decoder.decode(cut));
+    }
+
+    private static boolean sameSale(MarketCodec.SaleDecision decision, MarketCodec.SaleDecision expected) {
+        if (decision.count != expected.count) {
+            return false;
+        }
+        for (int i = 0; i < decision.count; i++) {
+            if (decision.spices[i] != expected.spices[i] || decision.quantities[i] != expected.quantities[i]
+                    || decision.values[i] != expected.values[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static MarketCodec.TradeProposal proposal() {
+        MarketCodec.TradeProposal proposal = new MarketCodec.TradeProposal();
+        proposal.spiceToSell = Spice.CRAVINHO;
+        proposal.quantityToSell = 7;
+        proposal.spiceToBuy = Spice.CARDAMOM;
+        proposal.quantityToBuy = 11;
+        return proposal;
+    }
+
+    private static MarketCodec.FillReport fill() {
+        MarketCodec.FillReport fill = new MarketCodec.FillReport();
+        fill.fills = 2;
+        fill.spiceSold = Spice.CRAVINHO;
+        fill.quantitySold = 7;
+        fill.spiceBought = Spice.CARDAMOM;
+        fill.quantityBought = 12;
+        return fill;
+    }
+
+    private static MarketCodec.SaleDecision sale() {
+        MarketCodec.SaleDecision sale = new MarketCodec.SaleDecision();
+        sale.add(Spice.NUTMEG, 5, 40);
+        sale.add(Spice.CINNAMON, 2, 10);
+        return sale;
+    }
+}
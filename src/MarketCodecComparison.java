@@ -0,0 +1,155 @@
+package projectAgents;
+
+import java.util.Random;
+
+// Compares the binary market records against the old comma separated strings, in bytes and parse time.
+// The codec itself is checked by MarketCodecCheck.
+//
+// java -classpath src/ projectAgents.MarketCodecComparison [merchants] [rounds]
+public class MarketCodecComparison {
+
+    public static void main(String[] args) {
+        int merchants = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        Random random = new Random(42);
+        int spices = Spice.COUNT;
+
+        int[][] stocks = new int[merchants][spices];
+        int[][] sales = new int[merchants][spices];
+        int[] prices = new int[spices];
+        for (int m = 0; m < merchants; m++) {
+            for (int i = 0; i < spices; i++) {
+                stocks[m][i] = random.nextInt(50);
+                sales[m][i] = random.nextInt(3) == 0 ? 0 : random.nextInt(20);
+            }
+        }
+        for (int i = 0; i < spices; i++) {
+            prices[i] = 5 + random.nextInt(30);
+        }
+
+        String[] stringStock = new String[merchants];
+        String[] stringSale = new String[merchants];
+        byte[][] binaryStock = new byte[merchants][];
+        byte[][] binarySale = new byte[merchants][];
+        long stringBytes = 0;
+        long binaryBytes = 0;
+
+        for (int m = 0; m < merchants; m++) {
+            stringStock[m] = legacyStock(stocks[m]);
+            stringSale[m] = legacySale(sales[m], prices);
+            binaryStock[m] = MarketCodec.encodeStockReport(stocks[m]);
+            binarySale[m] = MarketCodec.encodeSaleDecision(saleDecision(sales[m], prices));
+
+            stringBytes += stringStock[m].length() + stringSale[m].length();
+            binaryBytes += binaryStock[m].length + binarySale[m].length;
+        }
+
+        String stringBroadcast = legacyBroadcast(prices, Spice.NUTMEG);
+        byte[] binaryBroadcast = MarketCodec.encodePriceBroadcast(0, prices, "TRADE_ROUTE", Spice.NUTMEG);
+        // The broadcast is sent once per merchant
+        stringBytes += (long) stringBroadcast.length() * merchants;
+        binaryBytes += (long) binaryBroadcast.length * merchants;
+
+        // Warm up both parsers before measuring
+        long sink = 0;
+        for (int r = 0; r < rounds; r++) {
+            sink += parseStrings(stringStock, stringSale, stringBroadcast);
+            sink += parseBinary(binaryStock, binarySale, binaryBroadcast);
+        }
+
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            sink += parseStrings(stringStock, stringSale, stringBroadcast);
+        }
+        long stringNanos = (System.nanoTime() - start) / rounds;
+
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            sink += parseBinary(binaryStock, binarySale, binaryBroadcast);
+        }
+        long binaryNanos = (System.nanoTime() - start) / rounds;
+
+        System.out.println("merchants: " + merchants + ", rounds measured: " + rounds + " (checksum " + sink + ")");
+        System.out.println(String.format("%-8s %14s %18s", "format", "bytes/round", "parse us/round"));
+        System.out.println(String.format("%-8s %14d %18.1f", "string", stringBytes, stringNanos / 1000.0));
+        System.out.println(String.format("%-8s %14d %18.1f", "binary", binaryBytes, binaryNanos / 1000.0));
+    }
+
+    private static long parseStrings(String[] stocks, String[] saleBatch, String broadcast) {
+        long total = 0;
+        for (int m = 0; m < stocks.length; m++) {
+            for (String quantity : stocks[m].split(",")) {
+                total += Integer.parseInt(quantity);
+            }
+            if (!"HOLD".equals(saleBatch[m])) {
+                for (String saleEntry : saleBatch[m].split(";")) {
+                    total += Integer.parseInt(saleEntry.split(",")[2]);
+                }
+            }
+            String[] parts = broadcast.split("\\|");
+            for (String price : parts[0].replace("PRICES,", "").trim().split(",")) {
+                total += Integer.parseInt(price.trim());
+            }
+            total += parts[1].split(" ")[8].length();
+        }
+        return total;
+    }
+
+    private static long parseBinary(byte[][] stocks, byte[][] saleBatch, byte[] broadcast) {
+        long total = 0;
+        int[] stock = new int[Spice.COUNT];
+        MarketCodec.SaleDecision decision = new MarketCodec.SaleDecision();
+        MarketCodec.PriceBroadcast prices = new MarketCodec.PriceBroadcast();
+        for (int m = 0; m < stocks.length; m++) {
+            MarketCodec.decodeStockReport(stocks[m], stock);
+            for (int quantity : stock) {
+                total += quantity;
+            }
+            MarketCodec.decodeSaleDecision(saleBatch[m], decision);
+            for (int i = 0; i < decision.count; i++) {
+                total += decision.values[i];
+            }
+            MarketCodec.decodePriceBroadcast(broadcast, prices);
+            for (int price : prices.prices) {
+                total += price;
+            }
+            total += prices.eventTarget.ordinal();
+        }
+        return total;
+    }
+
+    private static MarketCodec.SaleDecision saleDecision(int[] quantities, int[] prices) {
+        MarketCodec.SaleDecision decision = new MarketCodec.SaleDecision();
+        for (int i = 0; i < quantities.length; i++) {
+            if (quantities[i] > 0) {
+                decision.add(Spice.VALUES[i], quantities[i], quantities[i] * prices[i]);
+            }
+        }
+        return decision;
+    }
+
+    private static String legacyStock(int[] quantities) {
+        return quantities[0] + "," + quantities[1] + "," + quantities[2] + "," + quantities[3];
+    }
+
+    private static String legacySale(int[] quantities, int[] prices) {
+        StringBuilder sale = new StringBuilder();
+        for (int i = 0; i < quantities.length; i++) {
+            if (quantities[i] > 0) {
+                if (sale.length() > 0) {
+                    sale.append(";");
+                }
+                sale.append(Spice.VALUES[i].getDisplayName()).append(",").append(quantities[i]).append(",")
+                        .append(quantities[i] * prices[i]);
+            }
+        }
+        return sale.length() == 0 ? "HOLD" : sale.toString();
+    }
+
+    private static String legacyBroadcast(int[] prices, Spice target) {
+        return "PRICES," + prices[0] + "," + prices[1] + "," + prices[2] + "," + prices[3]
+                + "|EVENT,A new trade route has been discovered for " + target
+                + " : the price will decrease in the next round.";
+    }
+}
@@ -0,0 +1,211 @@
+package projectAgents;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.FSMBehaviour;
+import jade.core.behaviours.OneShotBehaviour;
+import jade.core.behaviours.SequentialBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+// Owns the prices of a market that is split over several BazaarAgent shards.
+// Every round each shard sends the stock totals of its own merchants, the coordinator merges them,
+// adjusts the prices for the whole market and sends the same price broadcast back to every shard.
+// A shard that misses the deadline counts with its last report and still gets the prices of the round, so it
+// does not wait for them until its own deadline; its next report is used in the next round.
+// At the end each shard reports its richest merchant, or nothing when nobody sold, and the coordinator
+// announces the overall winner.
+//
+// Arguments: number of shards [, seed]
+public class MarketCoordinatorAgent extends Agent {
+
+    private static final int TOTAL_ROUNDS = MarketEngine.TOTAL_ROUNDS;
+
+    private MarketEngine engine;
+    private ConversationRouter router;
+    private int shardCount;
+
+    // Last report of every shard that ever reported, its stock totals and number of merchants
+    private final Map<AID, MarketCodec.ShardStock> shards = new LinkedHashMap<>();
+    private int reported;
+    private int merchants;
+    private final MarketCodec.ShardStock shardReport = new MarketCodec.ShardStock();
+
+    private String winner;
+    private long winnerCoins = Long.MIN_VALUE;
+
+    @Override
+    protected void setup() {
+        MarketLog.info("MarketCoordinatorAgent " + getLocalName() + " started");
+
+        Object[] args = getArguments();
+        try {
+            shardCount = Integer.parseInt(args[0].toString());
+        } catch (RuntimeException e) {
+            MarketLog.warn(getLocalName() + " - Expected the number of shards as argument");
+            doDelete();
+            return;
+        }
+        engine = new MarketEngine();
+        if (args.length > 1) {
+            try {
+                engine = new MarketEngine(Long.parseLong(args[1].toString().trim()));
+            } catch (NumberFormatException e) {
+                MarketLog.warn(getLocalName() + " - Invalid seed " + args[1] + ". Using a random seed");
+            }
+        }
+        MarketLog.info(getLocalName() + " - seed " + engine.getSeed());
+
+        router = new ConversationRouter(this);
+        addBehaviour(router);
+
+        SequentialBehaviour behaviour = new SequentialBehaviour(this);
+        behaviour.addSubBehaviour(new RoundBehaviour());
+        behaviour.addSubBehaviour(new ReplyBarrierBehaviour(this, router,
+                () -> MarketProtocol.conversationId(MarketProtocol.RESULT, 0),
+                MessageTemplate.MatchPerformative(ACLMessage.INFORM), () -> shardCount,
+                StragglerPolicy.deadline("shards")) {
+            protected void handleReply(ACLMessage reply) {
+                processShardResult(reply);
+            }
+        });
+        behaviour.addSubBehaviour(new OneShotBehaviour(this) {
+            public void action() {
+                if (winner == null) {
+                    MarketLog.info(getLocalName() + " - No shard reported a winner");
+                } else {
+                    MarketLog.info("Winner is: " + winner + " with " + winnerCoins + " coins");
+                }
+            }
+        });
+        addBehaviour(behaviour);
+    }
+
+    private class RoundBehaviour extends FSMBehaviour {
+
+        private static final String SHARD_STOCK = "SHARD_STOCK";
+        private static final String PUBLISH_PRICES = "PUBLISH_PRICES";
+        private static final String CLOSE_ROUND = "CLOSE_ROUND";
+        private static final String ROUNDS_OVER = "ROUNDS_OVER";
+
+        private static final int NEXT_ROUND = 0;
+        private static final int LAST_ROUND = 1;
+
+        int round_counter = 0;
+
+        RoundBehaviour() {
+            super(MarketCoordinatorAgent.this);
+
+            registerFirstState(new ReplyBarrierBehaviour(myAgent, router,
+                    () -> MarketProtocol.conversationId(MarketProtocol.STOCK, round_counter),
+                    MessageTemplate.MatchPerformative(ACLMessage.INFORM), () -> shardCount,
+                    StragglerPolicy.deadline("shards")) {
+                public void onStart() {
+                    reported = 0;
+                    super.onStart();
+                }
+
+                // A malformed report leaves the last one of the shard in place
+                protected void handleReply(ACLMessage reply) {
+                    try {
+                        MarketCodec.decodeShardStock(reply.getByteSequenceContent(), shardReport);
+                    } catch (IllegalArgumentException e) {
+                        rejectReply(reply, e);
+                        return;
+                    }
+                    MarketCodec.ShardStock shardStock = shards.computeIfAbsent(reply.getSender(),
+                            shard -> new MarketCodec.ShardStock());
+                    shardStock.merchants = shardReport.merchants;
+                    System.arraycopy(shardReport.stock, 0, shardStock.stock, 0, Spice.COUNT);
+                    reported++;
+                }
+
+                public int onEnd() {
+                    engine.resetStock();
+                    merchants = 0;
+                    for (MarketCodec.ShardStock shardStock : shards.values()) {
+                        engine.addStock(shardStock.stock);
+                        merchants += shardStock.merchants;
+                    }
+                    return super.onEnd();
+                }
+            }, SHARD_STOCK);
+
+            registerState(new OneShotBehaviour(myAgent) {
+                public void action() {
+                    MarketLog.info(getLocalName() + " - ROUND " + round_counter + ", " + merchants
+                            + " merchants in " + shards.size() + " shards (" + reported + " reported), stock: "
+                            + Spice.format(engine.getStock()));
+
+                    engine.adjustPrices(Math.max(1, merchants));
+                    engine.determineNextRoundEvent();
+
+                    ACLMessage broadcast = new ACLMessage(ACLMessage.INFORM);
+                    broadcast.setByteSequenceContent(MarketCodec.encodePriceBroadcast(round_counter,
+                            engine.getPrices(), engine.getNextRoundEventType(), engine.getNextRoundTarget()));
+                    broadcast.setConversationId(MarketProtocol.conversationId(MarketProtocol.PRICES, round_counter));
+                    for (AID shard : shards.keySet()) {
+                        broadcast.addReceiver(shard);
+                    }
+                    send(broadcast);
+                    MarketLog.info(getLocalName() + " - prices: " + Spice.format(engine.getPrices()) + " | "
+                            + engine.describeNextRoundEvent());
+                }
+            }, PUBLISH_PRICES);
+
+            registerState(new OneShotBehaviour(myAgent) {
+                public void action() {
+                    round_counter++;
+                }
+
+                public int onEnd() {
+                    return round_counter >= TOTAL_ROUNDS ? LAST_ROUND : NEXT_ROUND;
+                }
+            }, CLOSE_ROUND);
+
+            registerLastState(new OneShotBehaviour(myAgent) {
+                public void action() {
+                }
+            }, ROUNDS_OVER);
+
+            registerDefaultTransition(SHARD_STOCK, PUBLISH_PRICES);
+            registerDefaultTransition(PUBLISH_PRICES, CLOSE_ROUND);
+            registerTransition(CLOSE_ROUND, SHARD_STOCK, NEXT_ROUND,
+                    new String[] { SHARD_STOCK, PUBLISH_PRICES, CLOSE_ROUND });
+            registerTransition(CLOSE_ROUND, ROUNDS_OVER, LAST_ROUND);
+        }
+    }
+
+    // Content is "<merchant name>,<coins>", empty when no merchant of the shard sold anything. The first
+    // shard to report wins a tie, a malformed result is dropped.
+    private void processShardResult(ACLMessage reply) {
+        String shard = reply.getSender().getLocalName();
+        String content = reply.getContent();
+        if (content == null || content.isEmpty()) {
+            MarketLog.info(shard + " - no merchant sold anything");
+            return;
+        }
+        int separator = content.lastIndexOf(',');
+        String merchant;
+        long coins;
+        try {
+            if (separator <= 0) {
+                throw new IllegalArgumentException("missing the merchant or its coins");
+            }
+            merchant = content.substring(0, separator);
+            coins = Long.parseLong(content.substring(separator + 1).trim());
+        } catch (IllegalArgumentException e) {
+            MarketLog.warn(getLocalName() + " - Dropping malformed result \"" + content + "\" from " + shard + ": "
+                    + e.getMessage());
+            return;
+        }
+        MarketLog.info(shard + " - best merchant " + merchant + " with " + coins + " coins");
+        if (coins > winnerCoins) {
+            winner = merchant;
+            winnerCoins = coins;
+        }
+    }
+}
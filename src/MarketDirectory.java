@@ -0,0 +1,132 @@
+package projectAgents;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.domain.DFService;
+import jade.domain.FIPAException;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.SearchConstraints;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.lang.acl.ACLMessage;
+import jade.proto.SubscriptionInitiator;
+
+// Local copy of the agents registered in the DF for one service type.
+// The cache is filled by one search at start and then kept up to date by a DF subscription,
+// so looking up the members never talks to the DF again.
+public class MarketDirectory {
+
+    public interface Listener {
+        void joined(AID agent);
+
+        void left(AID agent);
+    }
+
+    private final Agent agent;
+    private final String serviceType;
+    private final Set<AID> members = new LinkedHashSet<>();
+    private AID[] snapshot = new AID[0];
+    private boolean snapshotValid = true;
+    private Listener listener;
+    private SubscriptionInitiator subscription;
+
+    public MarketDirectory(Agent agent, String serviceType) {
+        this.agent = agent;
+        this.serviceType = serviceType;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void start() {
+        try {
+            for (DFAgentDescription dfd : DFService.search(agent, template(), unlimited())) {
+                members.add(dfd.getName());
+            }
+            snapshotValid = false;
+        } catch (FIPAException e) {
+            e.printStackTrace();
+        }
+
+        ACLMessage subscribe = DFService.createSubscriptionMessage(agent, agent.getDefaultDF(), template(),
+                unlimited());
+        subscription = new SubscriptionInitiator(agent, subscribe) {
+            @Override
+            protected void handleInform(ACLMessage inform) {
+                try {
+                    for (DFAgentDescription dfd : DFService.decodeNotification(inform.getContent())) {
+                        // A description without services means the agent deregistered
+                        if (dfd.getAllServices().hasNext()) {
+                            add(dfd.getName());
+                        } else {
+                            remove(dfd.getName());
+                        }
+                    }
+                } catch (FIPAException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        agent.addBehaviour(subscription);
+    }
+
+    public void stop() {
+        if (subscription != null) {
+            subscription.cancel(agent.getDefaultDF(), true);
+            subscription = null;
+        }
+    }
+
+    // The returned array is shared until the membership changes, callers must not modify it
+    public AID[] members() {
+        if (!snapshotValid) {
+            snapshot = members.toArray(new AID[0]);
+            snapshotValid = true;
+        }
+        return snapshot;
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    public boolean contains(AID member) {
+        return members.contains(member);
+    }
+
+    private void add(AID member) {
+        if (members.add(member)) {
+            snapshotValid = false;
+            if (listener != null) {
+                listener.joined(member);
+            }
+        }
+    }
+
+    private void remove(AID member) {
+        if (members.remove(member)) {
+            snapshotValid = false;
+            if (listener != null) {
+                listener.left(member);
+            }
+        }
+    }
+
+    private DFAgentDescription template() {
+        DFAgentDescription dfd = new DFAgentDescription();
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType(serviceType);
+        dfd.addServices(sd);
+        return dfd;
+    }
+
+    // The DF only returns a limited number of results by default
+    private static SearchConstraints unlimited() {
+        SearchConstraints constraints = new SearchConstraints();
+        constraints.setMaxResults(-1L);
+        return constraints;
+    }
+}
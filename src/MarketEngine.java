@@ -0,0 +1,172 @@
+package projectAgents;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+// Bazaar market rules, independent from JADE.
+// BazaarAgent feeds it the merchant replies, MarketSimulation drives it directly.
+// Prices move by the PricingRules table and are kept in fixed point, the merchants see them in whole coins.
+public class MarketEngine {
+
+    public static final int TOTAL_ROUNDS = 10;
+
+    // The -Dmarket.pricing table is read once and shared, the rules themselves are never modified
+    private static final PricingRules CONFIGURED_RULES = PricingRules.configured();
+
+    private final int[] prices = new int[Spice.COUNT];
+    private final int[] stock = new int[Spice.COUNT];
+
+    private final PricingRules rules;
+    private final long[] fixedPrices = new long[Spice.COUNT];
+    private PricingRules.Scaled scaledRules;
+
+    private String nextRoundEventType = null;
+    private Spice nextRoundTarget = null;
+
+    // Each engine owns its generator so parallel games neither share nor contend on Math.random().
+    // The events are the only random part of a game, so the seed is enough to replay one.
+    private final long seed;
+    private final SplittableRandom random;
+
+    // Draws a fresh seed, getSeed tells which one to reuse to play the same game again
+    public MarketEngine() {
+        this(new SplittableRandom().nextLong());
+    }
+
+    public MarketEngine(long seed) {
+        this(seed, CONFIGURED_RULES);
+    }
+
+    public MarketEngine(long seed, PricingRules rules) {
+        if (rules.size() != Spice.COUNT) {
+            throw new IllegalArgumentException("The pricing rules have " + rules.size() + " spices, the market "
+                    + Spice.COUNT);
+        }
+        this.seed = seed;
+        this.random = new SplittableRandom(seed);
+        this.rules = rules;
+        iniciatePrices();
+    }
+
+    private void iniciatePrices() {
+        rules.initialPrices(fixedPrices);
+        rules.publish(fixedPrices, prices);
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int[] getPrices() {
+        return prices;
+    }
+
+    public int[] getStock() {
+        return stock;
+    }
+
+    public String getNextRoundEventType() {
+        return nextRoundEventType;
+    }
+
+    public Spice getNextRoundTarget() {
+        return nextRoundTarget;
+    }
+
+    // Takes over the prices and next event published by another engine, used by the bazaar shards
+    public void updateMarket(int[] newPrices, String eventType, Spice eventTarget) {
+        System.arraycopy(newPrices, 0, prices, 0, Spice.COUNT);
+        for (int i = 0; i < Spice.COUNT; i++) {
+            fixedPrices[i] = PricingRules.fixed(newPrices[i]);
+        }
+        nextRoundEventType = eventType;
+        nextRoundTarget = eventTarget;
+    }
+
+    public void resetStock() {
+        Arrays.fill(stock, 0);
+    }
+
+    // Adds the stock reported by one merchant to the market totals
+    public void addStock(int[] merchantStock) {
+        for (int i = 0; i < Spice.COUNT; i++) {
+            stock[i] += merchantStock[i];
+        }
+    }
+
+    // Adjust prices based on current stock levels and market size.
+    // The steps are shared by the merchants, in fixed point they keep moving the price at any market size.
+    public void adjustPrices(int marketFactor) {
+        if (scaledRules == null || scaledRules.getMerchants() != Math.max(1, marketFactor)) {
+            scaledRules = rules.forMerchants(marketFactor);
+        }
+        rules.adjust(fixedPrices, stock, scaledRules);
+
+        // Adjust prices based on event
+        if (nextRoundEventType != null) {
+            switch (nextRoundEventType) {
+                case "SULTAN_TAX":
+                    rules.tax(fixedPrices);
+                    break;
+
+                case "TRADE_ROUTE":
+                    if (nextRoundTarget != null) {
+                        rules.tradeRoute(fixedPrices, nextRoundTarget.ordinal());
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+        }
+        rules.publish(fixedPrices, prices);
+    }
+
+    public void determineNextRoundEvent() {
+        double eventProbability = random.nextDouble();
+        if (eventProbability < 0.15) {
+            nextRoundEventType = "STORM";
+            nextRoundTarget = pickRandomSpice();
+        } else if (eventProbability < 0.30) {
+            nextRoundEventType = "SULTAN_TAX";
+            nextRoundTarget = null;
+        } else if (eventProbability < 0.45) {
+            nextRoundEventType = "TRADE_ROUTE";
+            nextRoundTarget = pickRandomSpice();
+        } else {
+            nextRoundEventType = null;
+            nextRoundTarget = null;
+        }
+    }
+
+    private Spice pickRandomSpice() {
+        return Spice.VALUES[random.nextInt(Spice.COUNT)];
+    }
+
+    // Returns the coins a merchant earns with its sale decision
+    public int processSaleDecision(MarketCodec.SaleDecision decision) {
+        int earned = 0;
+        for (int i = 0; i < decision.count; i++) {
+            earned += decision.values[i];
+        }
+        return earned;
+    }
+
+    public String describeNextRoundEvent() {
+        if (nextRoundEventType == null) {
+            return "No significant events.";
+        }
+        switch (nextRoundEventType) {
+            case "STORM":
+                return "A storm destroyed " + nextRoundTarget
+                        + " plantations: the price will increase in the next round.";
+            case "SULTAN_TAX":
+                return "The Sultan has imposed a new tax: all prices will increase in the next round.";
+            case "TRADE_ROUTE":
+                return "A new trade route has been discovered for " + nextRoundTarget
+                        + " : the price will decrease in the next round.";
+            default:
+                return "";
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package projectAgents;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.Profile;
+import jade.core.ProfileImpl;
+import jade.core.Runtime;
+import jade.wrapper.AgentContainer;
+import jade.wrapper.AgentController;
+import jade.wrapper.StaleProxyException;
+
+// Starts a whole game from a properties file: the merchants spread over several containers, then the
+// bazaar (or the coordinator and its shards) once every merchant is registered in the DF.
+// Agents are created in parallel batches instead of one createNewAgent call at a time.
+//
+// With pool.size=<n> the merchants of every container are hosted n at a time by MerchantPoolAgents
+// instead of one agent each.
+//
+// Without a file it starts the classic game: three merchants with risk 0.1, 0.5 and 0.9 and one bazaar.
+// Big games can span several JVMs: start one launcher per JVM with the same file and its own jvm.index,
+// the one with bazaar=true (jvm.index 0 by default) waits for the merchants of all of them.
+//
+// java -classpath lib/jade.jar:src/ projectAgents.MarketLauncher cluster.properties
+public class MarketLauncher {
+
+    private static final int MERCHANT_BATCH = 256;
+
+    // Settings read from the properties file, every key is optional
+    static class Config {
+        int merchants = 3;
+        double[] risk = { 0.1, 0.5, 0.9 };
+        String riskDistribution = "cycle";
+        long seed = 42;
+        int containers = 1;
+        String placement = "round-robin";
+        int shards = 1;
+        int poolSize = 0;
+        boolean main = false;
+        String host = "localhost";
+        int port = 1099;
+        int jvmIndex = 0;
+        int jvmCount = 1;
+        boolean bazaar = true;
+        int threads = Math.max(2, java.lang.Runtime.getRuntime().availableProcessors());
+        long registrationTimeoutMillis = 60000;
+
+        static Config load(Properties properties) {
+            Config config = new Config();
+            config.merchants = intValue(properties, "merchants", config.merchants);
+            config.risk = doubleList(properties, "risk", config.risk);
+            config.riskDistribution = properties.getProperty("risk.distribution", config.riskDistribution).trim();
+            config.seed = Long.parseLong(properties.getProperty("seed", Long.toString(config.seed)).trim());
+            config.containers = intValue(properties, "containers", config.containers);
+            config.placement = properties.getProperty("placement", config.placement).trim();
+            config.shards = intValue(properties, "shards", config.shards);
+            config.poolSize = intValue(properties, "pool.size", config.poolSize);
+            config.main = Boolean.parseBoolean(properties.getProperty("main", Boolean.toString(config.main)).trim());
+            config.host = properties.getProperty("host", config.host).trim();
+            config.port = intValue(properties, "port", config.port);
+            config.jvmIndex = intValue(properties, "jvm.index", config.jvmIndex);
+            config.jvmCount = intValue(properties, "jvm.count", config.jvmCount);
+            config.bazaar = Boolean.parseBoolean(
+                    properties.getProperty("bazaar", Boolean.toString(config.jvmIndex == 0)).trim());
+            config.threads = intValue(properties, "threads", config.threads);
+            config.registrationTimeoutMillis = intValue(properties, "registration.timeout",
+                    (int) config.registrationTimeoutMillis);
+            config.validate();
+            return config;
+        }
+
+        private void validate() {
+            if (merchants < 1 || containers < 1 || shards < 1 || threads < 1) {
+                throw new IllegalArgumentException("merchants, containers, shards and threads must be positive");
+            }
+            if (poolSize < 0) {
+                throw new IllegalArgumentException("pool.size must be 0 or positive");
+            }
+            if (jvmCount < 1 || jvmIndex < 0 || jvmIndex >= jvmCount) {
+                throw new IllegalArgumentException("jvm.index must be between 0 and jvm.count - 1");
+            }
+            if (risk.length == 0) {
+                throw new IllegalArgumentException("risk needs at least one value");
+            }
+            if (!riskDistribution.equals("cycle") && !riskDistribution.equals("uniform")
+                    && !riskDistribution.equals("random")) {
+                throw new IllegalArgumentException("Unknown risk.distribution " + riskDistribution);
+            }
+            if (!placement.equals("round-robin") && !placement.equals("block")) {
+                throw new IllegalArgumentException("Unknown placement " + placement);
+            }
+        }
+
+        // cycle repeats the listed values, uniform spreads the merchants evenly between the lowest and the
+        // highest value and random draws them between those bounds from the seed
+        double[] riskFactors() {
+            double[] factors = new double[merchants];
+            double low = Double.MAX_VALUE;
+            double high = -Double.MAX_VALUE;
+            for (double value : risk) {
+                low = Math.min(low, value);
+                high = Math.max(high, value);
+            }
+            SplittableRandom random = new SplittableRandom(seed);
+            for (int i = 0; i < merchants; i++) {
+                switch (riskDistribution) {
+                    case "uniform":
+                        factors[i] = low + (high - low) * i / Math.max(1, merchants - 1);
+                        break;
+                    case "random":
+                        factors[i] = low + (high - low) * random.nextDouble();
+                        break;
+                    default:
+                        factors[i] = risk[i % risk.length];
+                }
+            }
+            return factors;
+        }
+
+        // Container of the merchant among this JVM's containers, position is its index in the JVM's slice
+        int containerOf(int position, int slice) {
+            if (placement.equals("block")) {
+                int perContainer = (slice + containers - 1) / containers;
+                return position / perContainer;
+            }
+            return position % containers;
+        }
+
+        // Agents that register in the DF over all the JVMs: one per merchant, or one per pool of each container
+        int agents() {
+            if (poolSize == 0) {
+                return merchants;
+            }
+            int agents = 0;
+            for (int jvm = 0; jvm < jvmCount; jvm++) {
+                int slice = (merchants - jvm + jvmCount - 1) / jvmCount;
+                int[] perContainer = new int[containers];
+                for (int position = 0; position < slice; position++) {
+                    perContainer[containerOf(position, slice)]++;
+                }
+                for (int count : perContainer) {
+                    agents += (count + poolSize - 1) / poolSize;
+                }
+            }
+            return agents;
+        }
+
+        private static int intValue(Properties properties, String key, int fallback) {
+            return Integer.parseInt(properties.getProperty(key, Integer.toString(fallback)).trim());
+        }
+
+        private static double[] doubleList(Properties properties, String key, double[] fallback) {
+            String value = properties.getProperty(key);
+            if (value == null) {
+                return fallback;
+            }
+            String[] parts = value.split(",");
+            double[] values = new double[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                values[i] = Double.parseDouble(parts[i].trim());
+            }
+            return values;
+        }
+    }
+
+    // Helper agent living in the launcher JVM, it releases the launcher once enough merchants registered
+    static class RegistrationWatcher extends Agent {
+        private final int expected;
+        private final CountDownLatch ready = new CountDownLatch(1);
+        private MarketDirectory directory;
+
+        RegistrationWatcher(int expected) {
+            this.expected = expected;
+        }
+
+        @Override
+        protected void setup() {
+            directory = new MarketDirectory(this, "market");
+            directory.setListener(new MarketDirectory.Listener() {
+                @Override
+                public void joined(AID agent) {
+                    check();
+                }
+
+                @Override
+                public void left(AID agent) {
+                }
+            });
+            directory.start();
+            check();
+        }
+
+        private void check() {
+            if (directory.size() >= expected) {
+                ready.countDown();
+            }
+        }
+
+        boolean await(long timeoutMillis) throws InterruptedException {
+            return ready.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        int registered() {
+            return directory == null ? 0 : directory.size();
+        }
+
+        @Override
+        protected void takeDown() {
+            if (directory != null) {
+                directory.stop();
+            }
+        }
+    }
+
+    private final Config config;
+    private final Runtime runtime = Runtime.instance();
+    private final List<AgentContainer> containers = new ArrayList<>();
+
+    public MarketLauncher(Config config) {
+        this.config = config;
+    }
+
+    public void launch() throws StaleProxyException, InterruptedException {
+        if (config.main) {
+            runtime.createMainContainer(new ProfileImpl(config.host, config.port, null, true));
+        }
+        for (int i = 0; i < config.containers; i++) {
+            containers.add(runtime.createAgentContainer(profile("Market-" + config.jvmIndex + "-" + i)));
+        }
+
+        startMerchants();
+
+        if (config.bazaar) {
+            AgentContainer bazaarContainer = runtime.createAgentContainer(profile("BazaarContainer"));
+            containers.add(bazaarContainer);
+            awaitRegistrations(bazaarContainer);
+            startBazaar(bazaarContainer);
+        }
+
+        // ensure proper termination
+        java.lang.Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Shutting down agents...");
+            for (AgentContainer container : containers) {
+                try {
+                    container.kill();
+                } catch (StaleProxyException e) {
+                    e.printStackTrace();
+                }
+            }
+        }));
+    }
+
+    private Profile profile(String containerName) {
+        ProfileImpl profile = new ProfileImpl(config.host, config.port, null, false);
+        profile.setParameter(Profile.CONTAINER_NAME, containerName);
+        return profile;
+    }
+
+    // Merchant i belongs to JVM i % jvm.count, each JVM spreads its slice over its own containers
+    private void startMerchants() throws InterruptedException {
+        double[] riskFactors = config.riskFactors();
+        int slice = (config.merchants - config.jvmIndex + config.jvmCount - 1) / config.jvmCount;
+
+        List<List<Integer>> perContainer = new ArrayList<>();
+        for (int c = 0; c < config.containers; c++) {
+            perContainer.add(new ArrayList<>());
+        }
+        int position = 0;
+        for (int i = config.jvmIndex; i < config.merchants; i += config.jvmCount) {
+            perContainer.get(config.containerOf(position++, slice)).add(i);
+        }
+
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(config.threads);
+        List<Future<Integer>> batches = new ArrayList<>();
+        for (int c = 0; c < config.containers; c++) {
+            AgentContainer container = containers.get(c);
+            List<Integer> merchants = perContainer.get(c);
+            if (config.poolSize > 0) {
+                for (int from = 0; from < merchants.size(); from += config.poolSize) {
+                    List<Integer> pool = merchants.subList(from, Math.min(merchants.size(), from + config.poolSize));
+                    batches.add(executor.submit(() -> startPool(container, pool, riskFactors)));
+                }
+                continue;
+            }
+            for (int from = 0; from < merchants.size(); from += MERCHANT_BATCH) {
+                List<Integer> batch = merchants.subList(from, Math.min(merchants.size(), from + MERCHANT_BATCH));
+                batches.add(executor.submit(() -> startBatch(container, batch, riskFactors)));
+            }
+        }
+
+        int started = 0;
+        for (Future<Integer> batch : batches) {
+            try {
+                started += batch.get();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+        executor.shutdown();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println("Started " + started + " of " + slice + " merchants on " + config.containers
+                + " containers in " + String.format("%.2f", seconds) + "s");
+    }
+
+    private int startBatch(AgentContainer container, List<Integer> merchants, double[] riskFactors) {
+        int started = 0;
+        for (int i : merchants) {
+            try {
+                AgentController merchant = container.createNewAgent("m" + (i + 1), "projectAgents.MerchantAgent",
+                        new Object[] { riskFactors[i] });
+                merchant.start();
+                started++;
+            } catch (StaleProxyException e) {
+                System.err.println("Could not start merchant m" + (i + 1) + ": " + e.getMessage());
+            }
+        }
+        return started;
+    }
+
+    // The pool is named after its first merchant and gets the risk factor of every merchant it hosts
+    private int startPool(AgentContainer container, List<Integer> merchants, double[] riskFactors) {
+        String name = "pool" + (merchants.get(0) + 1);
+        Object[] args = new Object[merchants.size() + 1];
+        args[0] = Integer.toString(merchants.size());
+        for (int i = 0; i < merchants.size(); i++) {
+            args[i + 1] = riskFactors[merchants.get(i)];
+        }
+        try {
+            container.createNewAgent(name, "projectAgents.MerchantPoolAgent", args).start();
+            return merchants.size();
+        } catch (StaleProxyException e) {
+            System.err.println("Could not start merchant pool " + name + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    // Replaces the fixed sleep: the bazaar only starts once every merchant of every JVM is in the DF
+    private void awaitRegistrations(AgentContainer container) throws StaleProxyException, InterruptedException {
+        RegistrationWatcher watcher = new RegistrationWatcher(config.agents());
+        AgentController controller = container.acceptNewAgent("registration-watcher", watcher);
+        controller.start();
+        if (!watcher.await(config.registrationTimeoutMillis)) {
+            System.err.println("Only " + watcher.registered() + " of " + config.agents()
+                    + " merchant agents registered in time, starting the bazaar anyway");
+        }
+        controller.kill();
+    }
+
+    private void startBazaar(AgentContainer container) throws StaleProxyException {
+        // The same seed drives the risk factors and the market events, so a config file replays a game
+        String seed = Long.toString(config.seed);
+        if (config.shards == 1) {
+            container.createNewAgent("baz", "projectAgents.BazaarAgent", new Object[] { seed }).start();
+            return;
+        }
+        container.createNewAgent("coord", "projectAgents.MarketCoordinatorAgent",
+                new Object[] { Integer.toString(config.shards), seed }).start();
+        for (int shard = 0; shard < config.shards; shard++) {
+            container.createNewAgent("baz" + shard, "projectAgents.BazaarAgent",
+                    new Object[] { Integer.toString(shard), Integer.toString(config.shards), "coord", seed }).start();
+        }
+    }
+
+    public static void main(String[] args) {
+        Properties properties = new Properties();
+        if (args.length > 0) {
+            try (InputStream in = new FileInputStream(args[0])) {
+                properties.load(in);
+            } catch (IOException e) {
+                System.err.println("Could not read " + args[0] + ": " + e.getMessage());
+                return;
+            }
+        }
+
+        try {
+            new MarketLauncher(Config.load(properties)).launch();
+        } catch (StaleProxyException | InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package projectAgents;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+// Leveled logging for the agents that keeps stdout off the agent threads.
+// Messages go into a bounded lock-free ring buffer and a single daemon thread writes them out,
+// so an agent only pays for building the message and claiming a slot.
+//
+// INFO (the default) keeps the per-round summaries, TRACE adds one line per message handled.
+// Lazy messages are only built when their level is enabled:
+//
+//   MarketLog.trace(() -> getLocalName() + " - Sent order: " + order);
+//
+// A lambda that captures locals is still allocated at every call, the per-message handlers check the level
+// first so they allocate nothing at INFO:
+//
+//   if (MarketLog.isEnabled(MarketLog.Level.TRACE)) {
+//       MarketLog.trace(getLocalName() + " - Sent order: " + order);
+//   }
+//
+// The level is read from -Dmarket.log=ERROR|WARN|INFO|TRACE|OFF and the buffer size (a power of two)
+// from -Dmarket.log.buffer. When the buffer is full the agent waits for the writer instead of losing lines.
+public final class MarketLog {
+
+    public enum Level {
+        OFF, ERROR, WARN, INFO, TRACE
+    }
+
+    private static final int CAPACITY = capacity(Integer.getInteger("market.log.buffer", 8192));
+    private static final int MASK = CAPACITY - 1;
+    private static final int BATCH_SIZE = 64 * 1024;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private static volatile int threshold = parseLevel(System.getProperty("market.log", "INFO")).ordinal();
+
+    // Multi-producer single-consumer ring: a producer claims a sequence from tail, fills the slot and
+    // publishes it by storing sequence + 1 in published, the writer consumes slots in sequence order.
+    // The writer parks while the ring is empty and the producer of the first line after that wakes it.
+    private static final AtomicLong tail = new AtomicLong();
+    private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private static final String[] messages = new String[CAPACITY];
+    private static final byte[] levels = new byte[CAPACITY];
+    private static volatile long head;
+
+    private static final Thread writer = startWriter();
+
+    private MarketLog() {
+    }
+
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() <= threshold && level != Level.OFF;
+    }
+
+    public static void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    public static void info(Supplier<String> message) {
+        log(Level.INFO, message);
+    }
+
+    public static void trace(String message) {
+        log(Level.TRACE, message);
+    }
+
+    public static void trace(Supplier<String> message) {
+        log(Level.TRACE, message);
+    }
+
+    public static void log(Level level, Supplier<String> message) {
+        if (isEnabled(level)) {
+            publish(level, message.get());
+        }
+    }
+
+    public static void log(Level level, String message) {
+        if (isEnabled(level)) {
+            publish(level, message);
+        }
+    }
+
+    private static void publish(Level level, String message) {
+        long sequence = tail.getAndIncrement();
+        while (sequence - head >= CAPACITY) {
+            // Full, wait for the writer to free the slot
+            LockSupport.unpark(writer);
+            Thread.yield();
+        }
+        int slot = (int) (sequence & MASK);
+        messages[slot] = message;
+        levels[slot] = (byte) level.ordinal();
+        published.set(slot, sequence + 1);
+        // Only a line published to an empty ring wakes the writer, a busy writer reaches the others by itself.
+        // The writer stores head before it looks at the slot and the producer publishes before it reads head,
+        // both volatile, so either the writer sees the line or the producer sees the ring was empty; an unpark
+        // that comes before the park is kept and the park returns at once.
+        if (head == sequence) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    // Writes everything published so far, returns false when there was nothing to write.
+    // Lines are batched so stdout sees one write per batch instead of one per line.
+    private static boolean drain(PrintStream out, PrintStream err, StringBuilder batch) {
+        long next = head;
+        boolean wrote = false;
+        while (published.get((int) (next & MASK)) == next + 1) {
+            int slot = (int) (next & MASK);
+            String message = messages[slot];
+            messages[slot] = null;
+            if (levels[slot] <= Level.WARN.ordinal()) {
+                write(out, batch);
+                err.println(message);
+            } else {
+                batch.append(message).append(LINE_SEPARATOR);
+                if (batch.length() >= BATCH_SIZE) {
+                    write(out, batch);
+                }
+            }
+            next++;
+            head = next;
+            wrote = true;
+        }
+        write(out, batch);
+        return wrote;
+    }
+
+    private static void write(PrintStream out, StringBuilder batch) {
+        if (batch.length() > 0) {
+            out.print(batch);
+            out.flush();
+            batch.setLength(0);
+        }
+    }
+
+    // Blocks until every message published before the call was written, or the timeout passes
+    public static void flush(long timeoutMillis) {
+        long target = tail.get();
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+        while (head < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            Thread.yield();
+        }
+    }
+
+    private static Thread startWriter() {
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        Thread thread = new Thread(() -> {
+            StringBuilder batch = new StringBuilder(BATCH_SIZE);
+            while (true) {
+                if (!drain(out, err, batch)) {
+                    LockSupport.park();
+                }
+            }
+        }, "market-log");
+        thread.setDaemon(true);
+        thread.start();
+        // The writer is a daemon, give it a moment to write what is left when the VM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000), "market-log-shutdown"));
+        return thread;
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown log level " + name + ", using INFO");
+            return Level.INFO;
+        }
+    }
+
+    private static int capacity(int requested) {
+        int capacity = Integer.highestOneBit(Math.max(2, requested));
+        return capacity < requested ? capacity << 1 : capacity;
+    }
+}
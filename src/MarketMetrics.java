@@ -0,0 +1,236 @@
+package projectAgents;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+// Latency histograms and counters of the agents, published as MBeans under the "projectAgents" domain
+// so p50/p99 can be watched live with jconsole or any JMX client:
+//
+//   projectAgents:type=Phase,agent=baz,name=STOCK_REPLIES        time of one phase of the round
+//   projectAgents:type=Histogram,agent=baz,name=messagesPerRound  any other distribution
+//
+// Times are recorded in nanoseconds and shown in microseconds. With -Dmarket.metrics.file=<file> every
+// metric is also written to that file every -Dmarket.metrics.interval seconds (10 by default).
+public final class MarketMetrics {
+
+    private static final String DOMAIN = "projectAgents";
+    private static final double NANOS_PER_MICRO = 1000.0;
+
+    public interface HistogramMBean {
+        long getCount();
+
+        double getMean();
+
+        double getP50();
+
+        double getP90();
+
+        double getP99();
+
+        double getMax();
+
+        double getTotal();
+
+        void reset();
+    }
+
+    public interface PhaseMBean extends HistogramMBean {
+        String getLastSlowestMerchant();
+
+        double getLastSlowestMicros();
+    }
+
+    // A histogram shown in its own unit, times are shown in microseconds
+    public static class Values implements HistogramMBean {
+        final Histogram histogram = new Histogram();
+        private final double divisor;
+
+        Values(double divisor) {
+            this.divisor = divisor;
+        }
+
+        public void record(long value) {
+            histogram.record(value);
+        }
+
+        public long getCount() {
+            return histogram.getCount();
+        }
+
+        public double getMean() {
+            return histogram.getMean() / divisor;
+        }
+
+        public double getP50() {
+            return histogram.getPercentile(50) / divisor;
+        }
+
+        public double getP90() {
+            return histogram.getPercentile(90) / divisor;
+        }
+
+        public double getP99() {
+            return histogram.getPercentile(99) / divisor;
+        }
+
+        public double getMax() {
+            return histogram.getMax() / divisor;
+        }
+
+        public double getTotal() {
+            return histogram.getSum() / divisor;
+        }
+
+        public void reset() {
+            histogram.reset();
+        }
+    }
+
+    // Duration of one phase of a round. For a phase that waits for the merchants the last reply decides
+    // when it ends, so its sender is remembered as the slowest merchant of the phase.
+    // Used by the single thread of its agent, JMX only reads the volatile results.
+    public static class Phase extends Values implements PhaseMBean {
+        private long start;
+        private long lastReply;
+        private String lastSender;
+
+        private volatile String lastSlowestMerchant = "";
+        private volatile long lastSlowestNanos;
+
+        Phase() {
+            super(NANOS_PER_MICRO);
+        }
+
+        public void start() {
+            start = System.nanoTime();
+            lastSender = null;
+        }
+
+        public void reply(String sender) {
+            lastReply = System.nanoTime();
+            lastSender = sender;
+        }
+
+        public void end() {
+            histogram.recordSince(start);
+            if (lastSender != null) {
+                lastSlowestMerchant = lastSender;
+                lastSlowestNanos = lastReply - start;
+            }
+        }
+
+        public String getLastSlowestMerchant() {
+            return lastSlowestMerchant;
+        }
+
+        public double getLastSlowestMicros() {
+            return lastSlowestNanos / NANOS_PER_MICRO;
+        }
+    }
+
+    private static final Map<String, Values> metrics = new ConcurrentSkipListMap<>();
+    private static final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    static {
+        String file = System.getProperty("market.metrics.file");
+        if (file != null) {
+            startSnapshots(Paths.get(file), Long.getLong("market.metrics.interval", 10));
+        }
+    }
+
+    private MarketMetrics() {
+    }
+
+    public static Phase phase(String agent, String name) {
+        return register("Phase", agent, name, new Phase(), PhaseMBean.class);
+    }
+
+    public static Values latency(String agent, String name) {
+        return register("Histogram", agent, name, new Values(NANOS_PER_MICRO), HistogramMBean.class);
+    }
+
+    public static Values values(String agent, String name) {
+        return register("Histogram", agent, name, new Values(1), HistogramMBean.class);
+    }
+
+    // Registering the same metric twice returns the first one, so agents of one JVM can share it
+    @SuppressWarnings("unchecked")
+    private static synchronized <T extends Values> T register(String type, String agent, String name, T metric,
+            Class<? super T> view) {
+        String key = DOMAIN + ":type=" + type + ",agent=" + ObjectName.quote(agent) + ",name=" + ObjectName.quote(name);
+        Values existing = metrics.get(key);
+        if (existing != null) {
+            return (T) existing;
+        }
+        try {
+            server.registerMBean(new StandardMBean(metric, (Class<Object>) view), new ObjectName(key));
+        } catch (JMException e) {
+            MarketLog.warn("Could not register the metric " + key + ": " + e.getMessage());
+        }
+        metrics.put(key, metric);
+        return metric;
+    }
+
+    // Removes the metrics of an agent that is taken down
+    public static synchronized void unregister(String agent) {
+        String marker = ",agent=" + ObjectName.quote(agent) + ",";
+        metrics.keySet().removeIf(key -> {
+            if (!key.contains(marker)) {
+                return false;
+            }
+            try {
+                server.unregisterMBean(new ObjectName(key));
+            } catch (JMException e) {
+                // Already gone
+            }
+            return true;
+        });
+    }
+
+    private static void startSnapshots(Path file, long intervalSeconds) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "market-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> writeSnapshot(file), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // The snapshot is written next to the file and moved over it, so a reader never sees half of it
+    static void writeSnapshot(Path file) {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            out.write("# " + System.currentTimeMillis() + " name count mean p50 p90 p99 max"
+                    + System.lineSeparator());
+            for (Map.Entry<String, Values> entry : metrics.entrySet()) {
+                Values metric = entry.getValue();
+                out.write(String.format("%s %d %.1f %.1f %.1f %.1f %.1f%n", entry.getKey(), metric.getCount(),
+                        metric.getMean(), metric.getP50(), metric.getP90(), metric.getP99(), metric.getMax()));
+            }
+        } catch (IOException e) {
+            MarketLog.warn("Could not write the metrics snapshot " + temporary + ": " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            MarketLog.warn("Could not replace the metrics snapshot " + file + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package projectAgents;
+
+// Conversation ids used between the bazaar and the merchants.
+// Every phase message is tagged with "<PHASE>-<round>" so replies can be routed to the phase that asked for them.
+//
+// A round is three exchanges per merchant, each one carrying information both ways:
+//   STOCK-n    REQUEST round open (round, total rounds)  ->  INFORM stock report, storm already applied
+//   PRICES-n   INFORM price broadcast                    ->  PROPOSE order in TRADE-n
+//   TRADE-n    INFORM fill report                        ->  INFORM sale decision in SALE-n
+public final class MarketProtocol {
+
+    public static final String STOCK = "STOCK";
+    public static final String PRICES = "PRICES";
+    public static final String TRADE = "TRADE";
+    public static final String SALE = "SALE";
+    public static final String RESULT = "RESULT";
+
+    private MarketProtocol() {
+    }
+
+    public static String conversationId(String phase, int round) {
+        return phase + "-" + round;
+    }
+
+    public static String phaseOf(String conversationId) {
+        if (conversationId == null) {
+            return null;
+        }
+        int separator = conversationId.lastIndexOf('-');
+        return separator < 0 ? conversationId : conversationId.substring(0, separator);
+    }
+
+    // True for the phases of this protocol, false for DF notifications and any other conversation
+    public static boolean isMarketConversation(String conversationId) {
+        String phase = phaseOf(conversationId);
+        return STOCK.equals(phase) || PRICES.equals(phase) || TRADE.equals(phase) || SALE.equals(phase)
+                || RESULT.equals(phase);
+    }
+
+    public static int roundOf(String conversationId) {
+        int separator = conversationId.lastIndexOf('-');
+        if (separator < 0) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(conversationId.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
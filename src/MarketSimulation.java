@@ -0,0 +1,290 @@
+package projectAgents;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Runs a whole game with the same rules as BazaarAgent and MerchantAgent, without a JADE platform.
+// Every phase of a round is executed in the order the agents exchange their messages.
+//
+// java [-Dmarket.journal=<file>] [-Dmarket.pipeline=true] -classpath src/ projectAgents.MarketSimulation [games] [riskFactor...]
+//
+// A journaled run can be played again from the seeds it recorded, every round is checked against the recording:
+//
+// java -classpath src/ projectAgents.MarketSimulation replay <file>
+public class MarketSimulation {
+
+    private final MarketEngine engine;
+    private final double[] riskFactors;
+    private final MerchantStrategy[] merchants;
+    private final long[] wallets;
+    private final int totalRounds;
+
+    private final OrderBook orderBook;
+    private final MarketCodec.TradeProposal order = new MarketCodec.TradeProposal();
+    private final MarketCodec.FillReport fill = new MarketCodec.FillReport();
+    private final MarketCodec.SaleDecision saleDecision = new MarketCodec.SaleDecision();
+
+    private RoundJournal journal;
+    private final RoundJournal.Round journalRound = new RoundJournal.Round();
+
+    // Pipelined mode opens the next round of a merchant right after its sale decision, like BazaarAgent
+    // with -Dmarket.pipeline=true, and sums the stock reports as they come
+    private boolean pipelined;
+    private final int[] nextStock = new int[Spice.COUNT];
+    private boolean nextRoundOpened;
+
+    public MarketSimulation(double[] riskFactors, int totalRounds) {
+        this(riskFactors, totalRounds, new MarketEngine());
+    }
+
+    public MarketSimulation(double[] riskFactors, int totalRounds, long seed) {
+        this(riskFactors, totalRounds, new MarketEngine(seed));
+    }
+
+    private MarketSimulation(double[] riskFactors, int totalRounds, MarketEngine engine) {
+        this.engine = engine;
+        this.riskFactors = riskFactors.clone();
+        this.totalRounds = totalRounds;
+        merchants = new MerchantStrategy[riskFactors.length];
+        wallets = new long[riskFactors.length];
+        orderBook = new OrderBook(riskFactors.length);
+        for (int i = 0; i < riskFactors.length; i++) {
+            merchants[i] = new MerchantStrategy(riskFactors[i]);
+        }
+    }
+
+    // Journals every round of the game like BazaarAgent does, merchant i is named m<i + 1>
+    public void setJournal(RoundJournal journal) {
+        this.journal = journal;
+    }
+
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    public long getSeed() {
+        return engine.getSeed();
+    }
+
+    public void run() {
+        startGame();
+        for (int round = 0; round < totalRounds; round++) {
+            playRound(round);
+        }
+    }
+
+    private void startGame() {
+        for (MerchantStrategy merchant : merchants) {
+            merchant.setTotalRounds(totalRounds);
+        }
+        if (journal != null) {
+            List<String> names = new ArrayList<>(merchants.length);
+            for (int i = 0; i < merchants.length; i++) {
+                names.add("m" + (i + 1));
+            }
+            try {
+                journal.writeGame(engine.getSeed(), totalRounds, riskFactors);
+                journal.writeMerchants(names);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void playRound(int round) {
+        // STOCK: the round open sets the round and the merchant applies the storm before reporting
+        engine.resetStock();
+        if (nextRoundOpened) {
+            engine.addStock(nextStock);
+            nextRoundOpened = false;
+        } else {
+            for (MerchantStrategy merchant : merchants) {
+                openRound(merchant, round);
+                engine.addStock(merchant.getStock());
+            }
+        }
+
+        // PRICES
+        engine.adjustPrices(merchants.length);
+        engine.determineNextRoundEvent();
+        for (MerchantStrategy merchant : merchants) {
+            merchant.updateMarket(engine.getPrices(), engine.getNextRoundEventType(), engine.getNextRoundTarget());
+        }
+        journalRound.clear();
+        journalRound.set(round, engine.getPrices(), engine.getStock(), engine.getNextRoundEventType(),
+                engine.getNextRoundTarget());
+
+        trade();
+
+        // Sale decisions
+        boolean openNext = pipelined && round + 1 < totalRounds;
+        if (openNext) {
+            Arrays.fill(nextStock, 0);
+        }
+        for (int i = 0; i < merchants.length; i++) {
+            merchants[i].decideMarketSale(saleDecision);
+            if (!saleDecision.isHold()) {
+                int earned = engine.processSaleDecision(saleDecision);
+                wallets[i] += earned;
+                journalRound.addSale(i, saleDecision, earned);
+            }
+            if (openNext) {
+                openRound(merchants[i], round + 1);
+                int[] stock = merchants[i].getStock();
+                for (int s = 0; s < Spice.COUNT; s++) {
+                    nextStock[s] += stock[s];
+                }
+            }
+        }
+        nextRoundOpened = openNext;
+
+        if (journal != null) {
+            try {
+                journal.append(journalRound);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static void openRound(MerchantStrategy merchant, int round) {
+        merchant.setCurrentRound(round);
+        merchant.applyStormImpact();
+    }
+
+    // Every merchant submits one order in list order, which stands in for the arrival order at the bazaar,
+    // then the book is cleared once and each merchant applies its own fill
+    private void trade() {
+        orderBook.reset();
+        for (MerchantStrategy merchant : merchants) {
+            orderBook.submit(merchant.proposeTrade(order));
+        }
+        orderBook.clear();
+        for (int i = 0; i < merchants.length; i++) {
+            merchants[i].applyFill(orderBook.fillOf(i, fill));
+        }
+    }
+
+    public long[] getWallets() {
+        return wallets;
+    }
+
+    // Index of the richest merchant, the first one wins a tie
+    public int getWinner() {
+        int winner = 0;
+        for (int i = 1; i < wallets.length; i++) {
+            if (wallets[i] > wallets[winner]) {
+                winner = i;
+            }
+        }
+        return winner;
+    }
+
+    // Plays every recorded game again from its seed and risk factors and compares each round with the recording.
+    // Games recorded by the agents only carry their seed and are skipped.
+    private static void replay(Path file) throws IOException {
+        RoundJournal.Round recorded = new RoundJournal.Round();
+        MarketSimulation simulation = null;
+        int game = 0;
+        int replayed = 0;
+        long rounds = 0;
+        long mismatches = 0;
+
+        long start = System.nanoTime();
+        try (JournalReader reader = new JournalReader(file)) {
+            while (reader.next(recorded)) {
+                if (reader.getGames() != game) {
+                    game = reader.getGames();
+                    simulation = null;
+                    if (reader.getRiskFactors().length > 0) {
+                        simulation = new MarketSimulation(reader.getRiskFactors(), reader.getTotalRounds(),
+                                reader.getSeed());
+                        simulation.startGame();
+                        replayed++;
+                    }
+                }
+                if (simulation == null) {
+                    continue;
+                }
+                simulation.playRound(recorded.round);
+                rounds++;
+                if (!simulation.journalRound.matches(recorded) && ++mismatches <= 10) {
+                    System.out.println("Game " + game + " (seed " + reader.getSeed() + ") differs in round "
+                            + recorded.round);
+                }
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("Replayed " + replayed + " of " + game + " games, " + rounds + " rounds in "
+                + String.format("%.2f", seconds) + "s, " + mismatches + " rounds differ from the recording");
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("replay")) {
+            if (args.length < 2) {
+                System.err.println("Usage: MarketSimulation replay <journal file>");
+                return;
+            }
+            // A corrupt or truncated journal is rejected with an IllegalArgumentException
+            try {
+                replay(Paths.get(args[1]));
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Could not read the journal " + args[1] + ": " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+
+        int games = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        double[] riskFactors = { 0.1, 0.5, 0.9 };
+        if (args.length > 1) {
+            riskFactors = new double[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                riskFactors[i - 1] = Double.parseDouble(args[i]);
+            }
+        }
+
+        String journalFile = System.getProperty("market.journal");
+        RoundJournal journal = null;
+        if (journalFile != null) {
+            try {
+                journal = new RoundJournal(Paths.get(journalFile));
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Could not open the journal " + journalFile + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        int[] wins = new int[riskFactors.length];
+        long start = System.nanoTime();
+        for (int g = 0; g < games; g++) {
+            MarketSimulation simulation = new MarketSimulation(riskFactors, MarketEngine.TOTAL_ROUNDS);
+            simulation.setJournal(journal);
+            simulation.setPipelined(Boolean.getBoolean("market.pipeline"));
+            simulation.run();
+            wins[simulation.getWinner()]++;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        if (journal != null) {
+            try {
+                journal.close();
+                System.out.println("Journaled " + (long) games * MarketEngine.TOTAL_ROUNDS + " rounds to " + journalFile);
+            } catch (IOException e) {
+                System.err.println("Could not close the journal " + journalFile + ": " + e.getMessage());
+            }
+        }
+
+        System.out.println(games + " games in " + String.format("%.2f", seconds) + "s ("
+                + String.format("%.0f", games / seconds * 60) + " games/minute)");
+        for (int i = 0; i < riskFactors.length; i++) {
+            System.out.println("risk factor " + riskFactors[i] + " won " + wins[i] + " games");
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package projectAgents;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Immutable view of a market at the end of a phase: round, prices, market stock, the event of the next round
+// and the standings. The bazaar swaps in a new one after every phase that changes the market, readers on any
+// thread only ever see a complete snapshot and never wait for the round.
+//
+// A QUERY_REF to the bazaar is answered with an INFORM holding format(), one key=value per line:
+//
+//   round=3
+//   phase=SALE_DECISIONS
+//   merchants=12
+//   prices=21,5,15,10
+//   stock=80,240,130,60
+//   event=STORM CINNAMON      (NONE when nothing happens)
+//   standing=1,merchant2,420  (rank, merchant, coins; best first)
+public final class MarketSnapshot {
+
+    // Local query API, JADE applications in the same JVM get it with
+    // AgentController.getO2AInterface(MarketSnapshot.Query.class)
+    public interface Query {
+        MarketSnapshot getSnapshot();
+    }
+
+    private final int round;
+    private final String phase;
+    private final int merchants;
+    private final int[] prices;
+    private final int[] stock;
+    private final String eventType;
+    private final Spice eventTarget;
+    private final List<MerchantLedger.Standing> standings;
+
+    // Built on first use, every reader of a snapshot gets the same text
+    private volatile String formatted;
+
+    public MarketSnapshot(int round, String phase, int merchants, int[] prices, int[] stock, String eventType,
+            Spice eventTarget, List<MerchantLedger.Standing> standings) {
+        this.round = round;
+        this.phase = phase;
+        this.merchants = merchants;
+        this.prices = prices.clone();
+        this.stock = stock.clone();
+        this.eventType = eventType;
+        this.eventTarget = eventTarget;
+        this.standings = Collections.unmodifiableList(new ArrayList<>(standings));
+    }
+
+    public int getRound() {
+        return round;
+    }
+
+    // State of the round behaviour that published the snapshot
+    public String getPhase() {
+        return phase;
+    }
+
+    public int getMerchants() {
+        return merchants;
+    }
+
+    public int[] getPrices() {
+        return prices.clone();
+    }
+
+    public int[] getStock() {
+        return stock.clone();
+    }
+
+    // Null when the next round has no event
+    public String getEventType() {
+        return eventType;
+    }
+
+    public Spice getEventTarget() {
+        return eventTarget;
+    }
+
+    public List<MerchantLedger.Standing> getStandings() {
+        return standings;
+    }
+
+    public String format() {
+        String text = formatted;
+        if (text == null) {
+            StringBuilder builder = new StringBuilder();
+            builder.append("round=").append(round).append('\n');
+            builder.append("phase=").append(phase).append('\n');
+            builder.append("merchants=").append(merchants).append('\n');
+            appendValues(builder.append("prices="), prices).append('\n');
+            appendValues(builder.append("stock="), stock).append('\n');
+            builder.append("event=").append(eventType == null ? "NONE" : eventType);
+            if (eventType != null && eventTarget != null) {
+                builder.append(' ').append(eventTarget.name());
+            }
+            builder.append('\n');
+            for (MerchantLedger.Standing standing : standings) {
+                builder.append("standing=").append(standing.rank).append(',').append(standing.name).append(',')
+                        .append(standing.coins).append('\n');
+            }
+            text = builder.toString();
+            formatted = text;
+        }
+        return text;
+    }
+
+    private static StringBuilder appendValues(StringBuilder builder, int[] values) {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(values[i]);
+        }
+        return builder;
+    }
+
+    @Override
+    public String toString() {
+        return "round " + round + " " + phase + ": prices " + Spice.format(prices) + ", stock " + Spice.format(stock);
+    }
+}
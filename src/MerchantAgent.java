@@ -2,416 +2,292 @@ package projectAgents;
 
 import jade.core.AID;
 import jade.core.Agent;
-import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.FSMBehaviour;
 import jade.domain.DFService;
 import jade.domain.FIPAException;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
 import jade.lang.acl.ACLMessage;
-
-import java.util.HashMap;
-import java.util.Map;
+import jade.lang.acl.MessageTemplate;
 
 public class MerchantAgent extends Agent {
 
-    private Map<String, Integer> stock;
-    private Map<String, Integer> prices;
+    private static final long DEFAULT_TIMEOUT_MS = 60000;
+
+    private MerchantStrategy strategy;
 
-    private String nextRoundEvent = null;
-    private String nextRoundTarget = null;
+    // Shared by all the merchants of the JVM, one MBean per step instead of one per merchant
+    private static final MarketMetrics.Values processBroadcastTime = MarketMetrics.latency("merchants",
+            "processBroadcast");
+    private static final MarketMetrics.Values proposeTradeTime = MarketMetrics.latency("merchants", "proposeTrade");
 
-    private int totalRounds = 0;
-    private int currentRound = 0;
+    // Reused for every broadcast, order, fill and sale decision so a round does not allocate them again
+    private final MarketCodec.PriceBroadcast broadcast = new MarketCodec.PriceBroadcast();
+    private final MarketCodec.SaleDecision saleDecision = new MarketCodec.SaleDecision();
+    private final MarketCodec.TradeProposal tradeProposal = new MarketCodec.TradeProposal();
+    private final MarketCodec.FillReport fill = new MarketCodec.FillReport();
+    private final MarketCodec.RoundOpen roundOpen = new MarketCodec.RoundOpen();
 
-    // agents with diffrent risk factors (0.1, 0.5, 0.9)
-    private double riskFactor = 0.5; // default risk factor
+    // Stock of the last report, the next one only carries the changes unless the bazaar asks for all of it
+    private final int[] reportedStock = new int[Spice.COUNT];
+    private boolean reported;
 
     protected void setup() {
-        System.out.println("MerchantAgent " + getLocalName() + " started");
+        MarketLog.info("MerchantAgent " + getLocalName() + " started");
 
+        // agents with diffrent risk factors (0.1, 0.5, 0.9)
+        double riskFactor = MerchantStrategy.DEFAULT_RISK_FACTOR;
         Object[] args = getArguments();
         if (args != null && args.length > 0) {
             try {
                 riskFactor = Double.parseDouble(args[0].toString());
-                System.out.println(getLocalName() + " - Risk factor set to: " + riskFactor);
+                MarketLog.info(getLocalName() + " - Risk factor set to: " + riskFactor);
             } catch (NumberFormatException e) {
-                System.err.println(getLocalName() + " - Invalid risk factor argument. Using default: " + riskFactor);
+                MarketLog.warn(getLocalName() + " - Invalid risk factor argument. Using default: " + riskFactor);
             }
         }
 
-        initializeStock();
-        initializePrices();
+        strategy = new MerchantStrategy(riskFactor);
 
         registerInDF("market", "market-service");
 
-        addBehaviour(new MessageHandler());
-    }
-
-    private void initializeStock() {
-        stock = new HashMap<>();
-        stock.put("Cravinho", 10);
-        stock.put("Cinnamon", 15);
-        stock.put("Nutmeg", 20);
-        stock.put("Cardamom", 12);
-    }
-
-    private void initializePrices() {
-        prices = new HashMap<>();
-        prices.put("Cravinho", 0);
-        prices.put("Cinnamon", 0);
-        prices.put("Nutmeg", 0);
-        prices.put("Cardamom", 0);
-    }
-
-    private String getStockAsCommaSeparatedString() {
-        return stock.get("Cravinho") + "," +
-                stock.get("Cinnamon") + "," +
-                stock.get("Nutmeg") + "," +
-                stock.get("Cardamom");
+        ConversationRouter router = new ConversationRouter(this);
+        addBehaviour(router);
+        addBehaviour(new RoundBehaviour(router));
     }
 
     private void applyStormImpact() {
-        if ("STORM".equals(nextRoundEvent) && nextRoundTarget != null) {
-            int currentStock = stock.get(nextRoundTarget);
-            int reducedStock = Math.max(0, currentStock / 2); // Reduce stock by 50%
-            stock.put(nextRoundTarget, reducedStock);
-            System.out.println(getLocalName() + " - Storm reduced " + nextRoundTarget + " stock to " + reducedStock);
-            nextRoundEvent = null;
-            nextRoundTarget = null;
+        Spice target = strategy.applyStormImpact();
+        if (target != null && MarketLog.isEnabled(MarketLog.Level.TRACE)) {
+            MarketLog.trace(getLocalName() + " - Storm reduced " + target + " stock to "
+                    + strategy.getStock()[target.ordinal()]);
         }
     }
 
-    private double calculateRawUtilitySell(String spice) {
-        int currentPrice = prices.get(spice);
-        double expectedPrice = predictExpectedPrice(spice);
-        double roundWeight = (double) currentRound / totalRounds;
-
-        return (currentPrice * (1 - riskFactor)) + (roundWeight * expectedPrice * (1 - riskFactor));
-    }
-
-    private double calculateRawUtilityHold(String spice) {
-        double expectedPrice = predictExpectedPrice(spice);
-
-        return expectedPrice * (1 + riskFactor);
-    }
-
-    private double predictExpectedPrice(String spice) {
-        int currentPrice = prices.get(spice);
-
-        if (nextRoundEvent == null) {
-            // Return the current price since roundWeight is already taken into account
-            return currentPrice;
-        }
+    // The round of a merchant as a state machine: wait for the round open, then the prices, then the fill.
+    // Every wait only takes the message of its own phase and round from the router and never blocks the agent
+    // thread, messages of a later phase stay buffered until their state is reached and messages of a phase
+    // already left are dropped. A wait that gives up skips to the next round open, a round open that does
+    // not come means the game was abandoned and the merchant waits for a new game.
+    //
+    // The waits give up after -Dmarket.merchant.timeout ms, longer than the bazaar deadlines of a whole round.
+    private class RoundBehaviour extends FSMBehaviour {
+
+        private static final String ROUND_OPEN = "ROUND_OPEN";
+        private static final String PRICES = "PRICES";
+        private static final String FILL = "FILL";
+
+        private static final int RECEIVED = 0;
+        private static final int TIMED_OUT = 1;
+
+        private final ConversationRouter router;
+        private final long timeoutMillis = Long.getLong("market.merchant.timeout", DEFAULT_TIMEOUT_MS);
+
+        // Round the merchant waits for and the bazaar that opened it
+        private int round;
+        private AID bazaar;
+
+        RoundBehaviour(ConversationRouter router) {
+            super(MerchantAgent.this);
+            this.router = router;
+
+            MessageTemplate fromBazaar = new MessageTemplate(
+                    msg -> msg.getPerformative() == ACLMessage.INFORM && msg.getSender().equals(bazaar));
+
+            registerFirstState(new PhaseWait(MarketProtocol.STOCK,
+                    MessageTemplate.MatchPerformative(ACLMessage.REQUEST)) {
+                protected void handleReply(ACLMessage msg) {
+                    try {
+                        processRoundOpen(msg);
+                    } catch (IllegalArgumentException e) {
+                        rejectReply(msg, e);
+                        return;
+                    }
+                    bazaar = msg.getSender();
+                }
 
-        switch (nextRoundEvent) {
-            case "STORM":
-                if (nextRoundTarget != null && nextRoundTarget.equals(spice)) {
+                // Waiting for the first round is not an error, the game may simply not have started yet
+                protected void afterTimeout() {
+                    if (round > 0) {
+                        MarketLog.warn(getLocalName() + " - round " + round
+                                + " was never opened, waiting for a new game");
+                    }
+                    newGame();
+                }
+            }, ROUND_OPEN);
 
-                    // Introduce a trade-off: assume stock loss will dampen price benefits.
-                    double adjustedPrice = currentPrice * 1.5; // Price increase due to storm
-                    double stockLossFactor = 0.5; // Losing 50% of stock
-                    return adjustedPrice * stockLossFactor;
+            registerState(new PhaseWait(MarketProtocol.PRICES, fromBazaar) {
+                protected void handleReply(ACLMessage msg) {
+                    try {
+                        processBroadcast(msg);
+                    } catch (IllegalArgumentException e) {
+                        rejectReply(msg, e);
+                    }
                 }
-                break;
 
-            case "TRADE_ROUTE":
-                if (nextRoundTarget != null && nextRoundTarget.equals(spice)) {
-                    // Decreasing price by 20%.
-                    return currentPrice * 0.8;
+                protected void afterTimeout() {
+                    router.close(MarketProtocol.conversationId(MarketProtocol.TRADE, round));
+                    skipRound(getConversationId());
+                }
+            }, PRICES);
+
+            registerState(new PhaseWait(MarketProtocol.TRADE, fromBazaar) {
+                protected void handleReply(ACLMessage msg) {
+                    try {
+                        processFill(msg);
+                    } catch (IllegalArgumentException e) {
+                        rejectReply(msg, e);
+                    }
                 }
-                break;
 
-            case "SULTAN_TAX":
-                // Reducing prices by 10%.
-                return currentPrice * 0.9;
+                protected void afterReply() {
+                    nextRound();
+                }
 
-            default:
-                break;
+                protected void afterTimeout() {
+                    skipRound(getConversationId());
+                }
+            }, FILL);
+
+            // Going back to the round open starts every wait afresh
+            String[] roundStates = { ROUND_OPEN, PRICES, FILL };
+            registerTransition(ROUND_OPEN, PRICES, RECEIVED);
+            registerTransition(ROUND_OPEN, ROUND_OPEN, TIMED_OUT, roundStates);
+            registerTransition(PRICES, FILL, RECEIVED);
+            registerTransition(PRICES, ROUND_OPEN, TIMED_OUT, roundStates);
+            registerDefaultTransition(FILL, ROUND_OPEN, roundStates);
         }
 
-        // Return the current price since roundWeight is already taken into account
-        return currentPrice;
-    }
-
-    private double normalizeUtilitySell(String spice) {
-        double utilitySell = calculateRawUtilitySell(spice);
-        double utilityHold = calculateRawUtilityHold(spice);
-        return utilitySell / (utilitySell + utilityHold);
-    }
-
-    private double normalizeUtilityHold(String spice) {
-        double utilitySell = calculateRawUtilitySell(spice);
-        double utilityHold = calculateRawUtilityHold(spice);
-        return utilityHold / (utilitySell + utilityHold);
-    }
-
-    private int decideQuantityToSell(String spice) {
-        double normalizedSell = normalizeUtilitySell(spice);
-        return (int) Math.round(normalizedSell * stock.get(spice));
-    }
-
-    private int decideQuantityToHold(String spice) {
-        double normalizedHold = normalizeUtilityHold(spice);
-        return (int) Math.round(normalizedHold * stock.get(spice));
-    }
+        // Waits for the one message of the bazaar in the given phase of the current round. A message that
+        // does not decode is rejected before anything of the round changes, the wait goes on for a valid one.
+        private class PhaseWait extends ReplyBarrierBehaviour {
+            PhaseWait(String phase, MessageTemplate template) {
+                super(MerchantAgent.this, router, () -> MarketProtocol.conversationId(phase, round), template,
+                        () -> 1, timeoutMillis);
+            }
 
-    private void proposeTrade() {
-        String spiceToSell = chooseSpiceToSell();
-        String spiceToBuy = chooseSpiceToBuy(spiceToSell);
-    
-        ACLMessage proposal = new ACLMessage(ACLMessage.PROPOSE);
-        AID[] merchants = findAgentsByService("market");
-    
-        boolean tradeProposed = false;
-    
-        if (spiceToSell == null || spiceToBuy == null) {
-            proposal.setContent("NO_TRADE");
-            if (merchants != null) {
-                for (AID merchant : merchants) {
-                    proposal.addReceiver(merchant);
-                }
+            // The state decides what a timeout means, see afterTimeout
+            @Override
+            protected void onTimeout(int received, int expected) {
             }
-            send(proposal);
-            System.out.println(getLocalName() + " - No valid trade proposal can be made. Sent NO_TRADE");
-        } else {
-            int quantityToSell = decideQuantityToSell(spiceToSell);
-            int quantityToBuy = (int) Math.round(quantityToSell * adjustTradeRatio(spiceToSell, spiceToBuy));
-
-            String tradeProposal = spiceToSell + "," + quantityToSell + "," + spiceToBuy + "," + quantityToBuy;
-            proposal.setContent(tradeProposal);
-    
-            if (merchants != null) {
-                for (AID merchant : merchants) {
-                    proposal.addReceiver(merchant);
+
+            @Override
+            public int onEnd() {
+                super.onEnd();
+                if (hasTimedOut()) {
+                    afterTimeout();
+                    return TIMED_OUT;
                 }
+                afterReply();
+                return RECEIVED;
             }
-            send(proposal);
-            tradeProposed = true;
-            System.out.println(getLocalName() + " - Sent trade proposal: " + tradeProposal);
-        }
-    
-        int proposalsReceived = 0;
-        int numberOfMerchants = merchants != null ? merchants.length : 0; // Include all merchants
-        while (proposalsReceived < numberOfMerchants) {
-            ACLMessage reply = blockingReceive();
-            if (reply != null && reply.getPerformative() == ACLMessage.PROPOSE) {
-                handleTradeProposal(reply);
-                proposalsReceived++;
+
+            // Called once the conversation of the phase is closed, so the round can move on
+            protected void afterReply() {
             }
-        }
-    
-        if (tradeProposed) {
-            ACLMessage reply = blockingReceive();
-            if (reply != null) {
-                if (reply.getPerformative() == ACLMessage.ACCEPT_PROPOSAL) {
-                    System.out.println(
-                            getLocalName() + " - Trade proposal accepted by " + reply.getSender().getLocalName());
-                    finalizeTrade(reply);
-                } else if (reply.getPerformative() == ACLMessage.REJECT_PROPOSAL) {
-                    System.out.println(
-                            getLocalName() + " - Trade proposal rejected by " + reply.getSender().getLocalName());
-                }
-            } else {
-                System.out.println(getLocalName() + " - No response received for the trade proposal.");
+
+            protected void afterTimeout() {
             }
         }
-    }
-
-    private void finalizeTrade(ACLMessage msg) {
-        String proposalContent = msg.getContent();
-
-        System.out.println(getLocalName() + " - Finalizing trade: " + proposalContent);
 
-        String[] tradeDetails = proposalContent.split(",");
-        String spiceToSell = tradeDetails[0];
-        int quantityToSell = Integer.parseInt(tradeDetails[1]);
-        String spiceToBuy = tradeDetails[2];
-        int quantityToBuy = Integer.parseInt(tradeDetails[3]);
-
-        // Update stock based on the trade
-        stock.put(spiceToSell, stock.get(spiceToSell) - quantityToSell);
-        stock.put(spiceToBuy, stock.get(spiceToBuy) + quantityToBuy);
-
-        System.out.println(getLocalName() + " - Trade finalized. Updated stock: " + stock);
-    }
-
-    private boolean evaluateTradeProposal(String spiceOffered, int quantityOffered, String spiceRequested,
-            int quantityRequested) {
-        double utilityGain = calculateRawUtilityHold(spiceOffered) * quantityOffered;
-        double utilityLoss = calculateRawUtilitySell(spiceRequested) * quantityRequested;
-
-        return riskFactor < 0.5 ? utilityGain > utilityLoss : utilityGain * (1 + riskFactor) > utilityLoss;
-    }
-
-    private String chooseSpiceToSell() {
-        return stock.entrySet().stream()
-                .filter(entry -> entry.getValue() > 0)
-                .max((entry1, entry2) -> Double.compare(normalizeUtilitySell(entry1.getKey()),
-                        normalizeUtilitySell(entry2.getKey())))
-                .map(Map.Entry::getKey)
-                .orElse(null);
-    }
-
-    private String chooseSpiceToBuy(String spiceToSell) {
-        return stock.keySet().stream()
-                .filter(spice -> !spice.equals(spiceToSell))
-                .max((spice1, spice2) -> Double.compare(normalizeUtilityHold(spice1), normalizeUtilityHold(spice2)))
-                .orElse(null);
-    }
-
-    private double adjustTradeRatio(String spiceToSell, String spiceToBuy) {
-        double expectedPriceSell = predictExpectedPrice(spiceToSell);
-        double expectedPriceBuy = predictExpectedPrice(spiceToBuy);
-
-        double baseRatio = expectedPriceSell / expectedPriceBuy;
-        return riskFactor < 0.5 ? baseRatio * (1 - riskFactor) : baseRatio * (1 + riskFactor);
-    }
+        private void skipRound(String conversationId) {
+            MarketLog.warn(getLocalName() + " - no " + conversationId + " from the bazaar, skipping to the next round");
+            nextRound();
+        }
 
-    private class MessageHandler extends CyclicBehaviour {
-        @Override
-        public void action() {
-            ACLMessage msg = myAgent.receive();
-            if (msg != null) {
-                if (msg.getPerformative() == ACLMessage.REQUEST && "STOCK".equals(msg.getContent())) {
-                    // Apply storm
-                    applyStormImpact();
-
-                    ACLMessage reply = msg.createReply();
-                    reply.setPerformative(ACLMessage.INFORM);
-                    reply.setContent(getStockAsCommaSeparatedString());
-                    myAgent.send(reply);
-                    System.out.println(getLocalName() + " - Sent stock details: " + stock);
-                } else if (msg.getPerformative() == ACLMessage.INFORM) {
-                    if (msg.getContent().startsWith("PRICES,")) {
-                        // Process Broadcast
-                        processBroadcast(msg);
-                    } else if (msg.getContent().startsWith("TOTAL_ROUNDS")) {
-                        totalRounds = Integer.parseInt(msg.getContent().split("=")[1]);
-
-                        ACLMessage ack = msg.createReply();
-                        ack.setPerformative(ACLMessage.CONFIRM);
-                        ack.setContent("ACK");
-                        myAgent.send(ack);
-                    } else if (msg.getContent().startsWith("CURRENT_ROUND")) {
-                        currentRound = Integer.parseInt(msg.getContent().split("=")[1]);
-
-                        ACLMessage ack = msg.createReply();
-                        ack.setPerformative(ACLMessage.CONFIRM);
-                        ack.setContent("ACK");
-                        myAgent.send(ack);
-                    }
-                }
-            } else {
-                block();
+        private void nextRound() {
+            round++;
+            if (round >= roundOpen.totalRounds) {
+                MarketLog.info(getLocalName() + " - game over with stock " + Spice.format(strategy.getStock()));
+                newGame();
             }
         }
 
-        private void processBroadcast(ACLMessage msg) {
-            String[] parts = msg.getContent().split("\\|");
-            String pricesPart = parts[0].replace("PRICES,", "").trim();
-            String eventPart = parts[1].replace("EVENT,", "").trim();
-
-            // Update local prices
-            String[] receivedPrices = pricesPart.split(",");
-            prices.put("Cravinho", Integer.parseInt(receivedPrices[0].trim()));
-            prices.put("Cinnamon", Integer.parseInt(receivedPrices[1].trim()));
-            prices.put("Nutmeg", Integer.parseInt(receivedPrices[2].trim()));
-            prices.put("Cardamom", Integer.parseInt(receivedPrices[3].trim()));
-
-            // Determine nextRoundEvent and nextRoundTarget
-            if (eventPart.startsWith("A storm destroyed")) {
-                nextRoundEvent = "STORM";
-                nextRoundTarget = eventPart.split(" ")[3];
-            } else if (eventPart.startsWith("The Sultan has imposed a new tax")) {
-                nextRoundEvent = "SULTAN_TAX";
-                nextRoundTarget = null;
-                System.out.println(getLocalName() + " - Next round event: SULTAN_TAX");
-            } else if (eventPart.startsWith("A new trade route")) {
-                nextRoundEvent = "TRADE_ROUTE";
-                nextRoundTarget = eventPart.split(" ")[8];
-            } else {
-                nextRoundEvent = null;
-                nextRoundTarget = null;
-            }
+        // The conversation ids of a new game are the ones of the last game, the router forgets them all
+        private void newGame() {
+            round = 0;
+            bazaar = null;
+            router.reset();
+        }
 
-            // propose trade
-            proposeTrade();
+        // The round open sets the round, the storm of the last broadcast hits and the stock report
+        // answers it, so no separate acknowledgement is needed. A round open that does not ask for the full
+        // stock acknowledges the last report.
+        private void processRoundOpen(ACLMessage msg) {
+            MarketCodec.decodeRoundOpen(msg.getByteSequenceContent(), roundOpen);
+            strategy.setTotalRounds(roundOpen.totalRounds);
+            strategy.setCurrentRound(roundOpen.round);
 
-            // decide what to sell
-            String saleDecision = decideMarketSale();
+            // Apply storm
+            applyStormImpact();
 
+            int[] stock = strategy.getStock();
             ACLMessage reply = msg.createReply();
             reply.setPerformative(ACLMessage.INFORM);
-            reply.setContent(saleDecision);
-            send(reply);
-
-            System.out.println(getLocalName() + " - Sent market sale decision: " + saleDecision);
+            if (roundOpen.fullStock || !reported) {
+                reply.setByteSequenceContent(MarketCodec.encodeStockReport(stock));
+                System.arraycopy(stock, 0, reportedStock, 0, Spice.COUNT);
+                reported = true;
+            } else {
+                reply.setByteSequenceContent(MarketCodec.encodeStockDelta(stock, reportedStock));
+            }
+            myAgent.send(reply);
+            if (MarketLog.isEnabled(MarketLog.Level.TRACE)) {
+                MarketLog.trace(getLocalName() + " - Sent stock details: " + Spice.format(strategy.getStock()));
+            }
         }
 
-        private String decideMarketSale() {
-            StringBuilder saleDecision = new StringBuilder();
-            boolean isSelling = false;
-
-            for (String spice : stock.keySet()) {
-                int quantityToSell = decideQuantityToSell(spice);
-                if (quantityToSell > 0) {
-                    isSelling = true;
-                    int pricePerUnit = prices.get(spice);
-                    int totalValue = quantityToSell * pricePerUnit;
-
-                    saleDecision.append(spice)
-                            .append(",")
-                            .append(quantityToSell)
-                            .append(",")
-                            .append(totalValue)
-                            .append(";");
-
-                    stock.put(spice, stock.get(spice) - quantityToSell);
-                }
-            }
+        private void processBroadcast(ACLMessage msg) {
+            long start = System.nanoTime();
+            MarketCodec.decodePriceBroadcast(msg.getByteSequenceContent(), broadcast);
 
-            if (!isSelling) {
-                return "HOLD"; // no sale
+            // Update local prices and the next round event
+            strategy.updateMarket(broadcast.prices, broadcast.eventType, broadcast.eventTarget);
+            if ("SULTAN_TAX".equals(broadcast.eventType) && MarketLog.isEnabled(MarketLog.Level.TRACE)) {
+                MarketLog.trace(getLocalName() + " - Next round event: SULTAN_TAX");
             }
 
-            // remove semicolon
-            if (saleDecision.length() > 0 && saleDecision.charAt(saleDecision.length() - 1) == ';') {
-                saleDecision.deleteCharAt(saleDecision.length() - 1);
+            // submit this round's order to the bazaar order book
+            long proposeStart = System.nanoTime();
+            strategy.proposeTrade(tradeProposal);
+            proposeTradeTime.record(System.nanoTime() - proposeStart);
+
+            ACLMessage order = msg.createReply();
+            order.setPerformative(ACLMessage.PROPOSE);
+            order.setConversationId(MarketProtocol.conversationId(MarketProtocol.TRADE, broadcast.round));
+            order.setByteSequenceContent(MarketCodec.encodeTradeProposal(tradeProposal));
+            send(order);
+            processBroadcastTime.record(System.nanoTime() - start);
+            if (MarketLog.isEnabled(MarketLog.Level.TRACE)) {
+                MarketLog.trace(getLocalName() + " - Sent order: " + tradeProposal);
             }
-
-            return saleDecision.toString();
         }
 
-    }
-
-    private void handleTradeProposal(ACLMessage msg) {
+        // The fill report closes the trade phase, the sale is decided on the stock left after trading
+        private void processFill(ACLMessage msg) {
+            MarketCodec.decodeFillReport(msg.getByteSequenceContent(), fill);
+            strategy.applyFill(fill);
+            if (!fill.isEmpty() && MarketLog.isEnabled(MarketLog.Level.TRACE)) {
+                MarketLog.trace(getLocalName() + " - Order filled: " + fill + ". Updated stock: "
+                        + Spice.format(strategy.getStock()));
+            }
 
-        String proposalContent = msg.getContent();
-        ACLMessage reply = msg.createReply();
+            // decide what to sell
+            strategy.decideMarketSale(saleDecision);
 
-        System.out.println(getLocalName() + " - Received trade proposal: " + proposalContent);
+            ACLMessage reply = msg.createReply();
+            reply.setPerformative(ACLMessage.INFORM);
+            reply.setConversationId(MarketProtocol.conversationId(MarketProtocol.SALE,
+                    MarketProtocol.roundOf(msg.getConversationId())));
+            reply.setByteSequenceContent(MarketCodec.encodeSaleDecision(saleDecision));
+            send(reply);
 
-        if ("NO_TRADE".equals(proposalContent)) {
-            System.out.println(getLocalName() + " - No trade proposal from " + msg.getSender().getLocalName());
-            return;
+            if (MarketLog.isEnabled(MarketLog.Level.TRACE)) {
+                MarketLog.trace(getLocalName() + " - Sent market sale decision with " + saleDecision.count
+                        + " entries");
+            }
         }
 
-        String[] tradeDetails = proposalContent.split(",");
-        String spiceToSell = tradeDetails[0];
-        int quantityToSell = Integer.parseInt(tradeDetails[1]);
-        String spiceToBuy = tradeDetails[2];
-        int quantityToBuy = Integer.parseInt(tradeDetails[3]);
-
-        boolean isAcceptable = evaluateTradeProposal(spiceToBuy, quantityToBuy, spiceToSell, quantityToSell);
-        if (isAcceptable) {
-            reply.setPerformative(ACLMessage.ACCEPT_PROPOSAL);
-            reply.setContent(proposalContent);
-            System.out.println(getLocalName() + " - Accepted trade proposal: " + proposalContent);
-        } else {
-            reply.setPerformative(ACLMessage.REJECT_PROPOSAL);
-            System.out.println(getLocalName() + " - Rejected trade proposal: " + proposalContent);
-        }
-        send(reply);
     }
 
     private void registerInDF(String serviceType, String serviceName) {
@@ -423,31 +299,12 @@ public class MerchantAgent extends Agent {
         dfd.addServices(sd);
         try {
             DFService.register(this, dfd);
-            System.out.println(getLocalName() + " - registered with the DF as a " + serviceType + " agent.");
+            MarketLog.info(getLocalName() + " - registered with the DF as a " + serviceType + " agent.");
         } catch (FIPAException fe) {
             fe.printStackTrace();
         }
     }
 
-    private AID[] findAgentsByService(String serviceType) {
-        try {
-            DFAgentDescription dfd = new DFAgentDescription();
-            ServiceDescription sd = new ServiceDescription();
-            sd.setType(serviceType);
-            dfd.addServices(sd);
-
-            DFAgentDescription[] result = DFService.search(this, dfd);
-            AID[] agentIDs = new AID[result.length];
-            for (int i = 0; i < result.length; i++) {
-                agentIDs[i] = result[i].getName();
-            }
-            return agentIDs;
-        } catch (FIPAException e) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-
     @Override
     protected void takeDown() {
         try {
@@ -455,6 +312,6 @@ public class MerchantAgent extends Agent {
         } catch (FIPAException fe) {
             fe.printStackTrace();
         }
-        System.out.println(getLocalName() + " - terminating.");
+        MarketLog.info(getLocalName() + " - terminating.");
     }
 }
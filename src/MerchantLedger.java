@@ -0,0 +1,146 @@
+package projectAgents;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Wallets of the merchants of a game, independent from JADE.
+// Every merchant gets a dense id when it joins the ledger, ids are handed out in order so merchants added one
+// after the other get consecutive ids, and its coins are a slot of a long array.
+//
+// The ledger also keeps the best merchants in a small board, ordered by coins and then by id, updated with
+// every credit. Wallets only grow, so a merchant outside the board can only get on it through its own credit
+// and the board stays exact in O(K) per credit, usually one comparison. Only merchants credited at least once
+// are ranked. Merchants with the same coins share their rank, a tie that runs past the end of the board is
+// cut at the board size.
+public class MerchantLedger {
+
+    public static final int DEFAULT_TOP = 10;
+
+    private int size;
+    private String[] names;
+    private long[] coins;
+
+    // Place of every merchant on the board, -1 when it is not on it
+    private int[] place;
+
+    // Ids of the best merchants, best first
+    private final int[] top;
+    private int topSize;
+
+    public MerchantLedger(int capacity, int topSize) {
+        if (topSize < 1) {
+            throw new IllegalArgumentException("The board needs at least one place, got " + topSize);
+        }
+        capacity = Math.max(1, capacity);
+        names = new String[capacity];
+        coins = new long[capacity];
+        place = new int[capacity];
+        top = new int[topSize];
+    }
+
+    // One place of the standings
+    public static final class Standing {
+        public final int id;
+        public final String name;
+        public final long coins;
+        public final int rank;
+
+        Standing(int id, String name, long coins, int rank) {
+            this.id = id;
+            this.name = name;
+            this.coins = coins;
+            this.rank = rank;
+        }
+
+        @Override
+        public String toString() {
+            return rank + ". " + name + " " + coins;
+        }
+    }
+
+    // Returns the id of the new merchant, its wallet starts empty
+    public int add(String name) {
+        if (size == names.length) {
+            int capacity = size * 2;
+            names = Arrays.copyOf(names, capacity);
+            coins = Arrays.copyOf(coins, capacity);
+            place = Arrays.copyOf(place, capacity);
+        }
+        names[size] = name;
+        coins[size] = 0;
+        place[size] = -1;
+        return size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getName(int id) {
+        return names[id];
+    }
+
+    // A merchant that turns out to play under another name, such as a pool that reports its merchants
+    public void setName(int id, String name) {
+        names[id] = name;
+    }
+
+    public long getCoins(int id) {
+        return coins[id];
+    }
+
+    public void credit(int id, long amount) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("A wallet can not lose coins, got " + amount + " for " + names[id]);
+        }
+        coins[id] += amount;
+
+        int p = place[id];
+        if (p < 0) {
+            if (topSize < top.length) {
+                p = topSize++;
+            } else if (before(id, top[topSize - 1])) {
+                p = topSize - 1;
+                place[top[p]] = -1;
+            } else {
+                return;
+            }
+        }
+        while (p > 0 && before(id, top[p - 1])) {
+            top[p] = top[p - 1];
+            place[top[p]] = p;
+            p--;
+        }
+        top[p] = id;
+        place[id] = p;
+    }
+
+    private boolean before(int a, int b) {
+        return coins[a] > coins[b] || (coins[a] == coins[b] && a < b);
+    }
+
+    // The best merchants, best first, in O(K)
+    public List<Standing> standings() {
+        List<Standing> standings = new ArrayList<>(topSize);
+        int rank = 0;
+        for (int p = 0; p < topSize; p++) {
+            int id = top[p];
+            if (p == 0 || coins[id] != coins[top[p - 1]]) {
+                rank = p + 1;
+            }
+            standings.add(new Standing(id, names[id], coins[id], rank));
+        }
+        return standings;
+    }
+
+    // Every merchant sharing the first rank, none when nobody was credited yet
+    public List<Standing> winners() {
+        List<Standing> winners = standings();
+        int count = 0;
+        while (count < winners.size() && winners.get(count).rank == 1) {
+            count++;
+        }
+        return winners.subList(0, count);
+    }
+}
@@ -0,0 +1,303 @@
+package projectAgents;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.domain.DFService;
+import jade.domain.FIPAException;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+// Hosts many merchants in one agent, so a JVM can play with 100k merchants without 100k agents.
+// Every merchant of the pool keeps its own MerchantStrategy, with its own stock and risk factor, and the pool
+// answers each exchange of the round with one batched message for all of them: the stock totals (a
+// SHARD_STOCK, or a STOCK_DELTA of them), an ORDER_BATCH and a SALE_BATCH. The bazaar sees one participant
+// and gets the merchants' fills back in one FILL_BATCH.
+//
+// The strategies run in slices on a fork-join pool shared by the pools of the JVM, -Dmarket.pool.threads
+// sets its parallelism (all the processors by default). A merchant only touches its own strategy and its
+// own slot of the batch, so the slices need no locking.
+//
+// Arguments: number of merchants followed by the risk factors, cycled over the merchants.
+public class MerchantPoolAgent extends Agent {
+
+    private static final int MERCHANTS_PER_TASK = 1024;
+    private static final ForkJoinPool executor = new ForkJoinPool(Integer.getInteger("market.pool.threads",
+            java.lang.Runtime.getRuntime().availableProcessors()));
+
+    // Time the pool needs for each exchange of the round, shared by the pools of the JVM
+    private static final MarketMetrics.Values roundOpenTime = MarketMetrics.latency("pools", "roundOpen");
+    private static final MarketMetrics.Values proposeTradesTime = MarketMetrics.latency("pools", "proposeTrades");
+    private static final MarketMetrics.Values decideSalesTime = MarketMetrics.latency("pools", "decideSales");
+
+    private MerchantStrategy[] merchants;
+
+    // One slot per merchant, reused every round
+    private MarketCodec.TradeProposal[] orders;
+    private MarketCodec.FillReport[] fills;
+    private MarketCodec.SaleDecision[] sales;
+
+    private final int[] stock = new int[Spice.COUNT];
+    private final int[] reportedStock = new int[Spice.COUNT];
+    private boolean reported;
+    private final MarketCodec.PriceBroadcast broadcast = new MarketCodec.PriceBroadcast();
+    private final MarketCodec.RoundOpen roundOpen = new MarketCodec.RoundOpen();
+
+    protected void setup() {
+        int count = 1;
+        double[] riskFactors = { MerchantStrategy.DEFAULT_RISK_FACTOR };
+        Object[] args = getArguments();
+        try {
+            if (args != null && args.length > 0) {
+                count = Integer.parseInt(args[0].toString());
+            }
+            if (args != null && args.length > 1) {
+                riskFactors = new double[args.length - 1];
+                for (int i = 1; i < args.length; i++) {
+                    riskFactors[i - 1] = Double.parseDouble(args[i].toString());
+                }
+            }
+        } catch (NumberFormatException e) {
+            MarketLog.warn(getLocalName() + " - Invalid pool arguments. Using one merchant with the default risk");
+            count = 1;
+            riskFactors = new double[] { MerchantStrategy.DEFAULT_RISK_FACTOR };
+        }
+        if (count < 1) {
+            MarketLog.warn(getLocalName() + " - A pool needs at least one merchant, got " + count);
+            doDelete();
+            return;
+        }
+
+        merchants = new MerchantStrategy[count];
+        orders = new MarketCodec.TradeProposal[count];
+        fills = new MarketCodec.FillReport[count];
+        sales = new MarketCodec.SaleDecision[count];
+        for (int i = 0; i < count; i++) {
+            merchants[i] = new MerchantStrategy(riskFactors[i % riskFactors.length]);
+            orders[i] = new MarketCodec.TradeProposal();
+            fills[i] = new MarketCodec.FillReport();
+            sales[i] = new MarketCodec.SaleDecision();
+        }
+        MarketLog.info("MerchantPoolAgent " + getLocalName() + " started with " + count + " merchants on "
+                + executor.getParallelism() + " threads");
+
+        registerInDF("market", "market-pool");
+
+        addBehaviour(new MessageHandler());
+    }
+
+    // Runs the step for every merchant, in parallel slices once the pool is big enough
+    private void forEachMerchant(IntConsumer step) {
+        if (merchants.length <= MERCHANTS_PER_TASK) {
+            for (int i = 0; i < merchants.length; i++) {
+                step.accept(i);
+            }
+        } else {
+            executor.invoke(new Slice(step, 0, merchants.length));
+        }
+    }
+
+    private static class Slice extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final IntConsumer step;
+        private final int from;
+        private final int to;
+
+        Slice(IntConsumer step, int from, int to) {
+            this.step = step;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= MERCHANTS_PER_TASK) {
+                for (int i = from; i < to; i++) {
+                    step.accept(i);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Slice(step, from, middle), new Slice(step, middle, to));
+        }
+    }
+
+    private class MessageHandler extends CyclicBehaviour {
+
+        // Anything outside the market protocol, such as DF notifications, is left in the mailbox
+        private final MessageTemplate bazaarMessages = new MessageTemplate(
+                msg -> MarketProtocol.isMarketConversation(msg.getConversationId()));
+
+        @Override
+        public void action() {
+            ACLMessage msg = myAgent.receive(bazaarMessages);
+            if (msg != null) {
+                String phase = MarketProtocol.phaseOf(msg.getConversationId());
+                if (msg.getPerformative() == ACLMessage.REQUEST && MarketProtocol.STOCK.equals(phase)) {
+                    processRoundOpen(msg);
+                } else if (msg.getPerformative() == ACLMessage.INFORM) {
+                    if (MarketProtocol.PRICES.equals(phase)) {
+                        processBroadcast(msg);
+                    } else if (MarketProtocol.TRADE.equals(phase)) {
+                        processFills(msg);
+                    }
+                }
+            } else {
+                block();
+            }
+        }
+
+        // The storm hits every merchant, the bazaar only needs the totals and the number of merchants.
+        // Like a merchant, the pool only sends the changes of its totals unless the bazaar asks for all of it.
+        private void processRoundOpen(ACLMessage msg) {
+            long start = System.nanoTime();
+            try {
+                MarketCodec.decodeRoundOpen(msg.getByteSequenceContent(), roundOpen);
+            } catch (IllegalArgumentException e) {
+                dropMalformed(msg, e);
+                return;
+            }
+            forEachMerchant(i -> {
+                MerchantStrategy merchant = merchants[i];
+                merchant.setTotalRounds(roundOpen.totalRounds);
+                merchant.setCurrentRound(roundOpen.round);
+                merchant.applyStormImpact();
+            });
+
+            Arrays.fill(stock, 0);
+            for (MerchantStrategy merchant : merchants) {
+                int[] merchantStock = merchant.getStock();
+                for (int i = 0; i < Spice.COUNT; i++) {
+                    stock[i] += merchantStock[i];
+                }
+            }
+
+            ACLMessage reply = msg.createReply();
+            reply.setPerformative(ACLMessage.INFORM);
+            if (roundOpen.fullStock || !reported) {
+                reply.setByteSequenceContent(MarketCodec.encodeShardStock(merchants.length, stock));
+                System.arraycopy(stock, 0, reportedStock, 0, Spice.COUNT);
+                reported = true;
+            } else {
+                reply.setByteSequenceContent(MarketCodec.encodeStockDelta(stock, reportedStock));
+            }
+            myAgent.send(reply);
+            roundOpenTime.record(System.nanoTime() - start);
+            if (MarketLog.isEnabled(MarketLog.Level.TRACE)) {
+                MarketLog.trace(getLocalName() + " - Sent pool stock: " + Spice.format(stock));
+            }
+        }
+
+        private void processBroadcast(ACLMessage msg) {
+            long start = System.nanoTime();
+            try {
+                MarketCodec.decodePriceBroadcast(msg.getByteSequenceContent(), broadcast);
+            } catch (IllegalArgumentException e) {
+                dropMalformed(msg, e);
+                return;
+            }
+            forEachMerchant(i -> {
+                merchants[i].updateMarket(broadcast.prices, broadcast.eventType, broadcast.eventTarget);
+                merchants[i].proposeTrade(orders[i]);
+            });
+
+            ACLMessage order = msg.createReply();
+            order.setPerformative(ACLMessage.PROPOSE);
+            order.setConversationId(MarketProtocol.conversationId(MarketProtocol.TRADE, broadcast.round));
+            order.setByteSequenceContent(MarketCodec.encodeOrderBatch(orders, merchants.length));
+            send(order);
+            proposeTradesTime.record(System.nanoTime() - start);
+            if (MarketLog.isEnabled(MarketLog.Level.TRACE)) {
+                MarketLog.trace(getLocalName() + " - Sent " + merchants.length + " orders");
+            }
+        }
+
+        // A bazaar that did not get the pool's stock report yet answers with a single empty fill report,
+        // every merchant then keeps its stock as it is
+        private void processFills(ACLMessage msg) {
+            long start = System.nanoTime();
+            byte[] data = msg.getByteSequenceContent();
+            if (MarketCodec.recordType(data) == MarketCodec.FILL_BATCH) {
+                try {
+                    MarketCodec.BatchReader batch = MarketCodec.readBatch(data, MarketCodec.FILL_BATCH);
+                    if (batch.size() != merchants.length) {
+                        MarketLog.warn(getLocalName() + " - Got " + batch.size() + " fills for " + merchants.length
+                                + " merchants");
+                    }
+                    for (MarketCodec.FillReport fill : fills) {
+                        if (batch.hasNext()) {
+                            batch.nextFill(fill);
+                        } else {
+                            fill.clear();
+                        }
+                    }
+                } catch (IllegalArgumentException e) {
+                    dropMalformed(msg, e);
+                    return;
+                }
+            } else {
+                for (MarketCodec.FillReport fill : fills) {
+                    fill.clear();
+                }
+            }
+
+            forEachMerchant(i -> {
+                merchants[i].applyFill(fills[i]);
+                merchants[i].decideMarketSale(sales[i]);
+            });
+
+            ACLMessage reply = msg.createReply();
+            reply.setPerformative(ACLMessage.INFORM);
+            reply.setConversationId(MarketProtocol.conversationId(MarketProtocol.SALE,
+                    MarketProtocol.roundOf(msg.getConversationId())));
+            reply.setByteSequenceContent(MarketCodec.encodeSaleBatch(sales, merchants.length));
+            send(reply);
+            decideSalesTime.record(System.nanoTime() - start);
+            if (MarketLog.isEnabled(MarketLog.Level.TRACE)) {
+                MarketLog.trace(getLocalName() + " - Sent " + merchants.length + " sale decisions");
+            }
+        }
+
+        // No merchant of the pool has seen any of it, the pool does not answer and the bazaar counts it as
+        // missing at its deadline
+        private void dropMalformed(ACLMessage msg, IllegalArgumentException e) {
+            MarketLog.warn(getLocalName() + " - Dropping malformed " + msg.getConversationId() + " from "
+                    + msg.getSender().getLocalName() + ": " + e.getMessage());
+        }
+    }
+
+    private void registerInDF(String serviceType, String serviceName) {
+        DFAgentDescription dfd = new DFAgentDescription();
+        dfd.setName(getAID());
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType(serviceType);
+        sd.setName(serviceName);
+        dfd.addServices(sd);
+        try {
+            DFService.register(this, dfd);
+            MarketLog.info(getLocalName() + " - registered with the DF as a " + serviceType + " agent.");
+        } catch (FIPAException fe) {
+            fe.printStackTrace();
+        }
+    }
+
+    @Override
+    protected void takeDown() {
+        if (merchants == null) {
+            return;
+        }
+        try {
+            DFService.deregister(this);
+        } catch (FIPAException fe) {
+            fe.printStackTrace();
+        }
+        MarketLog.info(getLocalName() + " - terminating.");
+    }
+}
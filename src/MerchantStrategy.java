@@ -0,0 +1,278 @@
+package projectAgents;
+
+// Merchant state and trading decisions, independent from JADE.
+// MerchantAgent feeds it the bazaar messages, MarketSimulation drives it directly.
+public class MerchantStrategy {
+
+    public static final double DEFAULT_RISK_FACTOR = 0.5;
+
+    private final int[] stock = new int[Spice.COUNT];
+    private final int[] prices = new int[Spice.COUNT];
+
+    private String nextRoundEvent = null;
+    private Spice nextRoundTarget = null;
+
+    private int totalRounds = 0;
+    private int currentRound = 0;
+
+    // agents with diffrent risk factors (0.1, 0.5, 0.9)
+    private final double riskFactor;
+
+    // Utilities only depend on prices, the next event and the round, so they are computed once per change
+    // instead of on every comparison. Stock is read live by the decisions that need it.
+    private final double[] expectedPrices = new double[Spice.COUNT];
+    private final double[] utilitySell = new double[Spice.COUNT];
+    private final double[] utilityHold = new double[Spice.COUNT];
+    private final double[] normalizedSell = new double[Spice.COUNT];
+    private final double[] normalizedHold = new double[Spice.COUNT];
+    private boolean utilitiesValid = false;
+
+    public MerchantStrategy(double riskFactor) {
+        this.riskFactor = riskFactor;
+        initializeStock();
+    }
+
+    private void initializeStock() {
+        stock[Spice.CRAVINHO.ordinal()] = 10;
+        stock[Spice.CINNAMON.ordinal()] = 15;
+        stock[Spice.NUTMEG.ordinal()] = 20;
+        stock[Spice.CARDAMOM.ordinal()] = 12;
+    }
+
+    public void setTotalRounds(int totalRounds) {
+        this.totalRounds = totalRounds;
+        utilitiesValid = false;
+    }
+
+    public void setCurrentRound(int currentRound) {
+        this.currentRound = currentRound;
+        utilitiesValid = false;
+    }
+
+    public int getCurrentRound() {
+        return currentRound;
+    }
+
+    public double getRiskFactor() {
+        return riskFactor;
+    }
+
+    public int[] getStock() {
+        return stock;
+    }
+
+    // Updates the local view of the market after a price broadcast
+    public void updateMarket(int[] newPrices, String eventType, Spice eventTarget) {
+        System.arraycopy(newPrices, 0, prices, 0, Spice.COUNT);
+        nextRoundEvent = eventType;
+        nextRoundTarget = eventTarget;
+        refreshUtilities();
+    }
+
+    public String getNextRoundEvent() {
+        return nextRoundEvent;
+    }
+
+    // Returns the spice hit by the storm, or null when there was no storm
+    public Spice applyStormImpact() {
+        if ("STORM".equals(nextRoundEvent) && nextRoundTarget != null) {
+            Spice target = nextRoundTarget;
+            stock[target.ordinal()] = Math.max(0, stock[target.ordinal()] / 2); // Reduce stock by 50%
+            nextRoundEvent = null;
+            nextRoundTarget = null;
+            utilitiesValid = false;
+            return target;
+        }
+        return null;
+    }
+
+    // Rebuilds the utility table for every spice
+    private void refreshUtilities() {
+        double roundWeight = (double) currentRound / totalRounds;
+        for (Spice spice : Spice.VALUES) {
+            int i = spice.ordinal();
+            double expectedPrice = predictExpectedPrice(spice);
+            double sell = (prices[i] * (1 - riskFactor)) + (roundWeight * expectedPrice * (1 - riskFactor));
+            double hold = expectedPrice * (1 + riskFactor);
+
+            expectedPrices[i] = expectedPrice;
+            utilitySell[i] = sell;
+            utilityHold[i] = hold;
+            normalizedSell[i] = sell / (sell + hold);
+            normalizedHold[i] = hold / (sell + hold);
+        }
+        utilitiesValid = true;
+    }
+
+    private void ensureUtilities() {
+        if (!utilitiesValid) {
+            refreshUtilities();
+        }
+    }
+
+    double calculateRawUtilitySell(Spice spice) {
+        ensureUtilities();
+        return utilitySell[spice.ordinal()];
+    }
+
+    double calculateRawUtilityHold(Spice spice) {
+        ensureUtilities();
+        return utilityHold[spice.ordinal()];
+    }
+
+    double expectedPrice(Spice spice) {
+        ensureUtilities();
+        return expectedPrices[spice.ordinal()];
+    }
+
+    private double predictExpectedPrice(Spice spice) {
+        int currentPrice = prices[spice.ordinal()];
+
+        if (nextRoundEvent == null) {
+            // Return the current price since roundWeight is already taken into account
+            return currentPrice;
+        }
+
+        switch (nextRoundEvent) {
+            case "STORM":
+                if (nextRoundTarget == spice) {
+
+                    // Introduce a trade-off: assume stock loss will dampen price benefits.
+                    double adjustedPrice = currentPrice * 1.5; // Price increase due to storm
+                    double stockLossFactor = 0.5; // Losing 50% of stock
+                    return adjustedPrice * stockLossFactor;
+                }
+                break;
+
+            case "TRADE_ROUTE":
+                if (nextRoundTarget == spice) {
+                    // Decreasing price by 20%.
+                    return currentPrice * 0.8;
+                }
+                break;
+
+            case "SULTAN_TAX":
+                // Reducing prices by 10%.
+                return currentPrice * 0.9;
+
+            default:
+                break;
+        }
+
+        // Return the current price since roundWeight is already taken into account
+        return currentPrice;
+    }
+
+    double normalizeUtilitySell(Spice spice) {
+        ensureUtilities();
+        return normalizedSell[spice.ordinal()];
+    }
+
+    double normalizeUtilityHold(Spice spice) {
+        ensureUtilities();
+        return normalizedHold[spice.ordinal()];
+    }
+
+    int decideQuantityToSell(Spice spice) {
+        double normalizedSell = normalizeUtilitySell(spice);
+        return (int) Math.round(normalizedSell * stock[spice.ordinal()]);
+    }
+
+    int decideQuantityToHold(Spice spice) {
+        double normalizedHold = normalizeUtilityHold(spice);
+        return (int) Math.round(normalizedHold * stock[spice.ordinal()]);
+    }
+
+    // Fills the order this merchant submits to the bazaar, noTrade is set when no valid trade exists.
+    // The quantities are a limit: the merchant gives at most quantityToSell and wants at least
+    // quantityToBuy / quantityToSell units back for every unit it gives.
+    public MarketCodec.TradeProposal proposeTrade(MarketCodec.TradeProposal proposal) {
+        Spice spiceToSell = chooseSpiceToSell();
+        Spice spiceToBuy = chooseSpiceToBuy(spiceToSell);
+
+        if (spiceToSell == null || spiceToBuy == null) {
+            proposal.noTrade = true;
+            proposal.spiceToSell = null;
+            proposal.quantityToSell = 0;
+            proposal.spiceToBuy = null;
+            proposal.quantityToBuy = 0;
+            return proposal;
+        }
+
+        int quantityToSell = decideQuantityToSell(spiceToSell);
+        proposal.noTrade = false;
+        proposal.spiceToSell = spiceToSell;
+        proposal.quantityToSell = quantityToSell;
+        proposal.spiceToBuy = spiceToBuy;
+        proposal.quantityToBuy = (int) Math.round(quantityToSell * adjustTradeRatio(spiceToSell, spiceToBuy));
+        return proposal;
+    }
+
+    // Applies what the merchant order traded when the bazaar cleared the order book
+    public void applyFill(MarketCodec.FillReport fill) {
+        if (fill.isEmpty()) {
+            return;
+        }
+        stock[fill.spiceSold.ordinal()] -= fill.quantitySold;
+        stock[fill.spiceBought.ordinal()] += fill.quantityBought;
+    }
+
+    Spice chooseSpiceToSell() {
+        Spice best = null;
+        double bestUtility = 0;
+        for (Spice spice : Spice.VALUES) {
+            if (stock[spice.ordinal()] <= 0) {
+                continue;
+            }
+            double utility = normalizeUtilitySell(spice);
+            if (best == null || utility > bestUtility) {
+                best = spice;
+                bestUtility = utility;
+            }
+        }
+        return best;
+    }
+
+    Spice chooseSpiceToBuy(Spice spiceToSell) {
+        Spice best = null;
+        double bestUtility = 0;
+        for (Spice spice : Spice.VALUES) {
+            if (spice == spiceToSell) {
+                continue;
+            }
+            double utility = normalizeUtilityHold(spice);
+            if (best == null || utility > bestUtility) {
+                best = spice;
+                bestUtility = utility;
+            }
+        }
+        return best;
+    }
+
+    double adjustTradeRatio(Spice spiceToSell, Spice spiceToBuy) {
+        double expectedPriceSell = expectedPrice(spiceToSell);
+        double expectedPriceBuy = expectedPrice(spiceToBuy);
+
+        double baseRatio = expectedPriceSell / expectedPriceBuy;
+        return riskFactor < 0.5 ? baseRatio * (1 - riskFactor) : baseRatio * (1 + riskFactor);
+    }
+
+    // Fills the sale decision and removes the sold quantities from the stock.
+    // An empty decision means the merchant holds all of its stock.
+    public MarketCodec.SaleDecision decideMarketSale(MarketCodec.SaleDecision saleDecision) {
+        saleDecision.clear();
+
+        for (Spice spice : Spice.VALUES) {
+            int quantityToSell = decideQuantityToSell(spice);
+            if (quantityToSell > 0) {
+                int pricePerUnit = prices[spice.ordinal()];
+                int totalValue = quantityToSell * pricePerUnit;
+
+                saleDecision.add(spice, quantityToSell, totalValue);
+
+                stock[spice.ordinal()] -= quantityToSell;
+            }
+        }
+        return saleDecision;
+    }
+}
@@ -0,0 +1,276 @@
+package projectAgents;
+
+import java.util.Arrays;
+
+// Batch double auction for spice swaps, independent from JADE.
+// BazaarAgent feeds it the merchant orders, MarketSimulation drives it directly.
+//
+// Each merchant submits at most one order per round: give up to quantityToSell of one spice for at least
+// quantityToBuy of another. For every pair of spices the lower ordinal is the base and the higher one the
+// quote, so an order selling the base is an ask and an order buying it is a bid, both priced in quote units
+// per base unit. The book is cleared once with price-time priority: best price first, then the earliest
+// order. A match executes at the price of the earlier order, partial fills are allowed, and no order ever
+// gives away more than it offered, so fills can be applied to the merchant stock without further checks.
+public class OrderBook {
+
+    private static final int ASK = 0;
+    private static final int BID = 1;
+    private static final int BUCKETS = Spice.COUNT * Spice.COUNT * 2;
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private int size;
+
+    // Order fields by arrival sequence
+    private int[] sellSpice;
+    private int[] sellQuantity;
+    private int[] buySpice;
+    private int[] buyQuantity;
+
+    // What each order gave away and received while clearing
+    private int[] sold;
+    private int[] bought;
+    private int[] fills;
+
+    // Orders grouped by pair and side, bucketStart[b]..bucketStart[b + 1] in sorted
+    private int[] sorted;
+    private final int[] bucketStart = new int[BUCKETS + 1];
+    private final int[] bucketNext = new int[BUCKETS];
+
+    private int trades;
+
+    public OrderBook(int capacity) {
+        allocate(Math.max(1, capacity));
+    }
+
+    private void allocate(int capacity) {
+        sellSpice = grow(sellSpice, capacity);
+        sellQuantity = grow(sellQuantity, capacity);
+        buySpice = grow(buySpice, capacity);
+        buyQuantity = grow(buyQuantity, capacity);
+        sold = grow(sold, capacity);
+        bought = grow(bought, capacity);
+        fills = grow(fills, capacity);
+        sorted = new int[capacity];
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        int[] grown = new int[capacity];
+        if (array != null) {
+            System.arraycopy(array, 0, grown, 0, Math.min(array.length, capacity));
+        }
+        return grown;
+    }
+
+    public void reset() {
+        size = 0;
+        trades = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Number of matches made by the last clear
+    public int getTrades() {
+        return trades;
+    }
+
+    // Adds an order and returns its id, orders are prioritised in the order they are submitted.
+    // A NO_TRADE order, or one with an empty side, still gets an id and is simply never matched.
+    public int submit(MarketCodec.TradeProposal order) {
+        if (size == sellSpice.length) {
+            allocate(size * 2);
+        }
+        int id = size++;
+        boolean valid = !order.noTrade && order.spiceToSell != null && order.spiceToBuy != null
+                && order.spiceToSell != order.spiceToBuy && order.quantityToSell > 0 && order.quantityToBuy > 0;
+        sellSpice[id] = valid ? order.spiceToSell.ordinal() : -1;
+        sellQuantity[id] = valid ? order.quantityToSell : 0;
+        buySpice[id] = valid ? order.spiceToBuy.ordinal() : -1;
+        buyQuantity[id] = valid ? order.quantityToBuy : 0;
+        sold[id] = 0;
+        bought[id] = 0;
+        fills[id] = 0;
+        return id;
+    }
+
+    // Matches every submitted order, the results are read with fillOf
+    public void clear() {
+        trades = 0;
+        groupByBucket();
+
+        for (int base = 0; base < Spice.COUNT; base++) {
+            for (int quote = base + 1; quote < Spice.COUNT; quote++) {
+                int asks = bucket(base, quote, ASK);
+                int bids = bucket(base, quote, BID);
+                sortBucket(asks, true);
+                sortBucket(bids, false);
+                match(bucketStart[asks], bucketStart[asks + 1], bucketStart[bids], bucketStart[bids + 1]);
+            }
+        }
+    }
+
+    public MarketCodec.FillReport fillOf(int id, MarketCodec.FillReport into) {
+        into.fills = fills[id];
+        into.spiceSold = fills[id] == 0 ? null : Spice.fromIndex(sellSpice[id]);
+        into.quantitySold = sold[id];
+        into.spiceBought = fills[id] == 0 ? null : Spice.fromIndex(buySpice[id]);
+        into.quantityBought = bought[id];
+        return into;
+    }
+
+    private static int bucket(int base, int quote, int side) {
+        return ((base * Spice.COUNT) + quote) * 2 + side;
+    }
+
+    // Counting sort of the valid orders by bucket, which keeps arrival order inside a bucket
+    private void groupByBucket() {
+        Arrays.fill(bucketStart, 0);
+        for (int id = 0; id < size; id++) {
+            if (sellSpice[id] >= 0) {
+                bucketStart[bucketOf(id) + 1]++;
+            }
+        }
+        for (int b = 0; b < BUCKETS; b++) {
+            bucketStart[b + 1] += bucketStart[b];
+        }
+        System.arraycopy(bucketStart, 0, bucketNext, 0, BUCKETS);
+        for (int id = 0; id < size; id++) {
+            if (sellSpice[id] >= 0) {
+                sorted[bucketNext[bucketOf(id)]++] = id;
+            }
+        }
+    }
+
+    private int bucketOf(int id) {
+        int sell = sellSpice[id];
+        int buy = buySpice[id];
+        return sell < buy ? bucket(sell, buy, ASK) : bucket(buy, sell, BID);
+    }
+
+    // Limit price of an order in quote units per base unit, as a fraction
+    private long priceNumerator(int id) {
+        return sellSpice[id] < buySpice[id] ? buyQuantity[id] : sellQuantity[id];
+    }
+
+    private long priceDenominator(int id) {
+        return sellSpice[id] < buySpice[id] ? sellQuantity[id] : buyQuantity[id];
+    }
+
+    // Negative when a has priority over b: better price first, then the earlier order
+    private int compare(int a, int b, boolean ascending) {
+        long left = priceNumerator(a) * priceDenominator(b);
+        long right = priceNumerator(b) * priceDenominator(a);
+        if (left != right) {
+            return (left < right) == ascending ? -1 : 1;
+        }
+        return Integer.compare(a, b);
+    }
+
+    private void sortBucket(int bucket, boolean ascending) {
+        sort(bucketStart[bucket], bucketStart[bucket + 1] - 1, ascending);
+    }
+
+    private void sort(int low, int high, boolean ascending) {
+        while (high - low >= INSERTION_SORT_THRESHOLD) {
+            int pivot = sorted[(low + high) >>> 1];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (compare(sorted[i], pivot, ascending) < 0) {
+                    i++;
+                }
+                while (compare(sorted[j], pivot, ascending) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    int swap = sorted[i];
+                    sorted[i++] = sorted[j];
+                    sorted[j--] = swap;
+                }
+            }
+            // Recurse into the smaller half to bound the stack depth
+            if (j - low < high - i) {
+                sort(low, j, ascending);
+                low = i;
+            } else {
+                sort(i, high, ascending);
+                high = j;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            int id = sorted[i];
+            int j = i - 1;
+            while (j >= low && compare(sorted[j], id, ascending) > 0) {
+                sorted[j + 1] = sorted[j];
+                j--;
+            }
+            sorted[j + 1] = id;
+        }
+    }
+
+    private void match(int ask, int askEnd, int bid, int bidEnd) {
+        while (ask < askEnd && bid < bidEnd) {
+            int seller = sorted[ask];
+            int buyer = sorted[bid];
+
+            // Best bid below the best ask, nothing else in this pair can cross
+            if (priceNumerator(buyer) * priceDenominator(seller) < priceNumerator(seller) * priceDenominator(buyer)) {
+                return;
+            }
+
+            // The ask gives base and wants quote, the bid gives quote and wants base
+            long base = Math.min(sellQuantity[seller] - sold[seller], buyQuantity[buyer] - bought[buyer]);
+            long bidQuote = sellQuantity[buyer] - sold[buyer];
+            long quote = quoteFor(base, seller, buyer, bidQuote);
+            if (quote < 0) {
+                // The bid cannot pay for all of it, take the largest amount its remaining quote covers
+                base = Math.min(base, bidQuote * priceDenominator(seller) / priceNumerator(seller));
+                quote = quoteFor(base, seller, buyer, bidQuote);
+            }
+
+            if (quote < 0) {
+                // No whole quantity fits between both limits, the later order gives way
+                if (seller > buyer) {
+                    ask++;
+                } else {
+                    bid++;
+                }
+                continue;
+            }
+
+            sold[seller] += (int) base;
+            bought[seller] += (int) quote;
+            fills[seller]++;
+            sold[buyer] += (int) quote;
+            bought[buyer] += (int) base;
+            fills[buyer]++;
+            trades++;
+
+            if (sold[seller] >= sellQuantity[seller]) {
+                ask++;
+            }
+            if (bought[buyer] >= buyQuantity[buyer] || sold[buyer] >= sellQuantity[buyer]) {
+                bid++;
+            }
+        }
+    }
+
+    // Quote paid for base units at the price of the earlier order, rounded to whole units without
+    // crossing either limit. Returns -1 when no whole quote fits.
+    private long quoteFor(long base, int seller, int buyer, long bidQuote) {
+        if (base <= 0) {
+            return -1;
+        }
+        long lowest = (base * priceNumerator(seller) + priceDenominator(seller) - 1) / priceDenominator(seller);
+        long highest = Math.min(bidQuote, base * priceNumerator(buyer) / priceDenominator(buyer));
+        if (lowest > highest) {
+            return -1;
+        }
+        int maker = Math.min(seller, buyer);
+        long numerator = priceNumerator(maker);
+        long denominator = priceDenominator(maker);
+        long quote = (2 * base * numerator + denominator) / (2 * denominator);
+        return Math.max(lowest, Math.min(highest, quote));
+    }
+}
@@ -0,0 +1,296 @@
+package projectAgents;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Price rules of a spice catalog, one row per spice kept as one primitive array per column, so adjusting the
+// prices of hundreds of spices is a couple of tight loops.
+//
+// Every round a spice whose market stock is below lowStock per merchant gets raiseStep / merchants coins more
+// expensive, above highStock per merchant it gets lowerStep / merchants cheaper, but not below its floor.
+// Then the event of the next round applies: SULTAN_TAX multiplies every price by its tax multiplier, not below
+// the tax floor, and TRADE_ROUTE multiplies the price of its target by its route multiplier.
+//
+// Prices and rule values are fixed-point longs with 32 fractional bits, so a step shared by a million
+// merchants still moves the price; prices are capped at 2^24 coins. Like the integer rules they replace, an
+// event multiplier truncates the price to whole coins and prices are published truncated, so with one
+// merchant the default table gives the same prices as the old rules.
+// A table is read from a text file with one line per spice, in any order, # starts a comment. The name of a
+// line picks the spice of the market it prices (any case), every spice needs exactly one line:
+//
+//   name  initial  lowStock  raiseStep  highStock  lowerStep  floor  taxMultiplier  taxFloor  routeMultiplier
+public final class PricingRules {
+
+    public static final int FRACTION_BITS = 32;
+    public static final long ONE = 1L << FRACTION_BITS;
+    private static final long LOW_MASK = ONE - 1;
+    private static final long MAX_PRICE = 1L << (24 + FRACTION_BITS);
+    private static final int COLUMNS = 9;
+    private static final double MAX_MULTIPLIER = 16;
+
+    // The original market: cravinho rare and valuable, cinnamon stable, nutmeg sensitive to demand and
+    // cardamom volatile
+    private static final String[] DEFAULT_TABLE = {
+            "CRAVINHO  20  10  10  30  5  20  0.9  1  0.8",
+            "CINNAMON   5  20   2  40  1   3  0.9  1  0.8",
+            "NUTMEG    15  15  10  35  5  10  0.9  1  0.8",
+            "CARDAMOM  10  10   5  40  3   5  0.9  1  0.8",
+    };
+
+    private final String[] names;
+    private final long[] initialPrices;
+    private final long[] lowStock;
+    private final long[] raiseSteps;
+    private final long[] highStock;
+    private final long[] lowerSteps;
+    private final long[] floors;
+    private final long[] taxMultipliers;
+    private final long[] taxFloors;
+    private final long[] routeMultipliers;
+
+    public PricingRules(int size) {
+        names = new String[size];
+        initialPrices = new long[size];
+        lowStock = new long[size];
+        raiseSteps = new long[size];
+        highStock = new long[size];
+        lowerSteps = new long[size];
+        floors = new long[size];
+        taxMultipliers = new long[size];
+        taxFloors = new long[size];
+        routeMultipliers = new long[size];
+    }
+
+    // The rules scaled to a number of merchants, the engine only scales them again when that number changes
+    public static final class Scaled {
+        final int merchants;
+        final long[] raiseBelow;
+        final long[] raiseSteps;
+        final long[] lowerAbove;
+        final long[] lowerSteps;
+
+        private Scaled(int merchants, int size) {
+            this.merchants = merchants;
+            raiseBelow = new long[size];
+            raiseSteps = new long[size];
+            lowerAbove = new long[size];
+            lowerSteps = new long[size];
+        }
+
+        public int getMerchants() {
+            return merchants;
+        }
+    }
+
+    public static PricingRules defaults() {
+        return parse(Arrays.asList(DEFAULT_TABLE));
+    }
+
+    // The table of -Dmarket.pricing=<file>, or the defaults when it is not set or can not be read
+    public static PricingRules configured() {
+        String file = System.getProperty("market.pricing");
+        if (file == null) {
+            return defaults();
+        }
+        try {
+            return load(Paths.get(file));
+        } catch (IOException | IllegalArgumentException e) {
+            MarketLog.warn("Could not read the pricing rules " + file + ", using the defaults: " + e.getMessage());
+            return defaults();
+        }
+    }
+
+    public static PricingRules load(Path file) throws IOException {
+        return parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    // A table for the spices of the market, every rule is stored at the ordinal of the spice it names
+    public static PricingRules parse(List<String> lines) {
+        List<String[]> rows = rows(lines);
+        if (rows.size() != Spice.COUNT) {
+            throw new IllegalArgumentException("The pricing rules have " + rows.size() + " spices, the market "
+                    + Spice.COUNT);
+        }
+        PricingRules rules = new PricingRules(Spice.COUNT);
+        for (String[] row : rows) {
+            Spice spice = Spice.fromName(row[0]);
+            if (rules.names[spice.ordinal()] != null) {
+                throw new IllegalArgumentException("Duplicate pricing rule for " + spice);
+            }
+            rules.setRule(spice.ordinal(), spice.name(), values(row));
+        }
+        return rules;
+    }
+
+    // A catalog of any spices, numbered in the order of the lines
+    public static PricingRules parseCatalog(List<String> lines) {
+        List<String[]> rows = rows(lines);
+        PricingRules rules = new PricingRules(rows.size());
+        Set<String> names = new HashSet<>();
+        for (int spice = 0; spice < rows.size(); spice++) {
+            String[] row = rows.get(spice);
+            if (!names.add(row[0])) {
+                throw new IllegalArgumentException("Duplicate pricing rule for " + row[0]);
+            }
+            rules.setRule(spice, row[0], values(row));
+        }
+        return rules;
+    }
+
+    private static List<String[]> rows(List<String> lines) {
+        List<String[]> rows = new ArrayList<>();
+        for (String line : lines) {
+            int comment = line.indexOf('#');
+            String text = (comment < 0 ? line : line.substring(0, comment)).trim();
+            if (!text.isEmpty()) {
+                rows.add(text.split("\\s+"));
+            }
+        }
+        return rows;
+    }
+
+    private static double[] values(String[] row) {
+        if (row.length != COLUMNS + 1) {
+            throw new IllegalArgumentException("Pricing rule of " + row[0] + " needs " + COLUMNS
+                    + " values, got " + (row.length - 1));
+        }
+        double[] values = new double[COLUMNS];
+        for (int i = 0; i < COLUMNS; i++) {
+            values[i] = Double.parseDouble(row[i + 1]);
+        }
+        return values;
+    }
+
+    // Values in the column order of the table file
+    public void setRule(int spice, String name, double[] values) {
+        if (values.length != COLUMNS) {
+            throw new IllegalArgumentException("A pricing rule needs " + COLUMNS + " values");
+        }
+        for (double value : values) {
+            if (value < 0 || value >= 1 << 24) {
+                throw new IllegalArgumentException("Pricing rule value out of range for " + name + ": " + value);
+            }
+        }
+        if (values[6] > MAX_MULTIPLIER || values[8] > MAX_MULTIPLIER) {
+            throw new IllegalArgumentException("Event multipliers above " + MAX_MULTIPLIER + " for " + name);
+        }
+        if (values[1] > values[3]) {
+            throw new IllegalArgumentException("lowStock above highStock for " + name);
+        }
+        names[spice] = name;
+        initialPrices[spice] = fixed(values[0]);
+        lowStock[spice] = fixed(values[1]);
+        raiseSteps[spice] = fixed(values[2]);
+        highStock[spice] = fixed(values[3]);
+        lowerSteps[spice] = fixed(values[4]);
+        floors[spice] = fixed(values[5]);
+        taxMultipliers[spice] = multiplier(values[6]);
+        taxFloors[spice] = fixed(values[7]);
+        routeMultipliers[spice] = multiplier(values[8]);
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int spice) {
+        return names[spice];
+    }
+
+    public void initialPrices(long[] into) {
+        System.arraycopy(initialPrices, 0, into, 0, names.length);
+    }
+
+    // Stock limits of whole units and steps of the given market size, at least one merchant
+    public Scaled forMerchants(int merchants) {
+        merchants = Math.max(1, merchants);
+        Scaled scaled = new Scaled(merchants, names.length);
+        for (int i = 0; i < names.length; i++) {
+            // stock < low * merchants is stock < ceil(low * merchants), stock > high is stock > floor(high)
+            scaled.raiseBelow[i] = (stockLimit(lowStock[i], merchants) + LOW_MASK) >>> FRACTION_BITS;
+            scaled.lowerAbove[i] = stockLimit(highStock[i], merchants) >>> FRACTION_BITS;
+            scaled.raiseSteps[i] = raiseSteps[i] / merchants;
+            scaled.lowerSteps[i] = lowerSteps[i] / merchants;
+        }
+        return scaled;
+    }
+
+    // Moves the prices by the stock of the market, the stock is in whole units
+    public void adjust(long[] prices, int[] stock, Scaled scaled) {
+        long[] raiseBelow = scaled.raiseBelow;
+        long[] raise = scaled.raiseSteps;
+        long[] lowerAbove = scaled.lowerAbove;
+        long[] lower = scaled.lowerSteps;
+        for (int i = 0; i < names.length; i++) {
+            long price = prices[i];
+            if (stock[i] < raiseBelow[i]) {
+                price = Math.min(MAX_PRICE, price + raise[i]);
+            } else if (stock[i] > lowerAbove[i]) {
+                price = Math.max(floors[i], price - lower[i]);
+            }
+            prices[i] = price;
+        }
+    }
+
+    public void tax(long[] prices) {
+        for (int i = 0; i < names.length; i++) {
+            long taxed = wholeCoins(multiply(prices[i], taxMultipliers[i]));
+            prices[i] = Math.max(taxFloors[i], Math.min(MAX_PRICE, taxed));
+        }
+    }
+
+    public void tradeRoute(long[] prices, int spice) {
+        prices[spice] = Math.min(MAX_PRICE, wholeCoins(multiply(prices[spice], routeMultipliers[spice])));
+    }
+
+    // Whole coins published to the merchants, the fraction is dropped
+    public void publish(long[] prices, int[] into) {
+        for (int i = 0; i < names.length; i++) {
+            into[i] = (int) (prices[i] >>> FRACTION_BITS);
+        }
+    }
+
+    private static long wholeCoins(long price) {
+        return price & ~LOW_MASK;
+    }
+
+    // A limit beyond any int stock is kept at the largest stock, so it never overflows
+    private static long stockLimit(long perMerchant, int merchants) {
+        if ((perMerchant >>> FRACTION_BITS) * merchants > Integer.MAX_VALUE) {
+            return (long) Integer.MAX_VALUE << FRACTION_BITS;
+        }
+        return multiply(perMerchant, (long) merchants << FRACTION_BITS);
+    }
+
+    public static long fixed(double value) {
+        return Math.round(value * ONE);
+    }
+
+    // Rounded up, so a multiplier such as 0.9 that has no exact fixed-point value never truncates a whole
+    // number of coins, 10 * 0.9 stays 9 as it was with doubles
+    private static long multiplier(double value) {
+        return (long) Math.ceil(value * ONE);
+    }
+
+    public static long fixed(int coins) {
+        return (long) coins << FRACTION_BITS;
+    }
+
+    // a * b of two non-negative fixed-point values, split in halves so the product never overflows for
+    // prices, stock limits and multipliers in range
+    static long multiply(long a, long b) {
+        long aHigh = a >>> FRACTION_BITS;
+        long aLow = a & LOW_MASK;
+        long bHigh = b >>> FRACTION_BITS;
+        long bLow = b & LOW_MASK;
+        return ((aHigh * bHigh) << FRACTION_BITS) + aHigh * bLow + aLow * bHigh + ((aLow * bLow) >>> FRACTION_BITS);
+    }
+}
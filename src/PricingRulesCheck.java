@@ -0,0 +1,96 @@
+package projectAgents;
+
+import java.util.SplittableRandom;
+
+// Plays seeded one-merchant games with MarketEngine and with the integer price rules it replaced, and checks
+// that both publish the same prices every round. Exits with 1 on the first difference.
+//
+// java -classpath src/ projectAgents.PricingRulesCheck [games] [seed]
+public class PricingRulesCheck {
+
+    public static void main(String[] args) {
+        int games = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+
+        SplittableRandom seeds = new SplittableRandom(seed);
+        int[] legacy = new int[Spice.COUNT];
+        int[] stock = new int[Spice.COUNT];
+        for (int game = 0; game < games; game++) {
+            long gameSeed = seeds.nextLong();
+            MarketEngine engine = new MarketEngine(gameSeed, PricingRules.defaults());
+            SplittableRandom stocks = new SplittableRandom(gameSeed);
+            System.arraycopy(engine.getPrices(), 0, legacy, 0, Spice.COUNT);
+            if (!same(engine.getPrices(), legacy, gameSeed, -1)) {
+                System.exit(1);
+            }
+
+            for (int round = 0; round < MarketEngine.TOTAL_ROUNDS; round++) {
+                // Stock around both thresholds of every spice
+                for (int i = 0; i < Spice.COUNT; i++) {
+                    stock[i] = stocks.nextInt(60);
+                }
+                engine.resetStock();
+                engine.addStock(stock);
+
+                legacyAdjust(legacy, stock, engine.getNextRoundEventType(), engine.getNextRoundTarget());
+                engine.adjustPrices(1);
+                if (!same(engine.getPrices(), legacy, gameSeed, round)) {
+                    System.exit(1);
+                }
+                engine.determineNextRoundEvent();
+            }
+        }
+        System.out.println(games + " games priced like the integer rules");
+    }
+
+    private static boolean same(int[] prices, int[] legacy, long seed, int round) {
+        for (int i = 0; i < Spice.COUNT; i++) {
+            if (prices[i] != legacy[i]) {
+                System.out.println("Game " + seed + " round " + round + ": " + Spice.format(prices)
+                        + ", the integer rules give " + Spice.format(legacy));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // MarketEngine.adjustPrices before the rule table, for one merchant
+    private static void legacyAdjust(int[] prices, int[] stock, String eventType, Spice eventTarget) {
+        final int cravinho = Spice.CRAVINHO.ordinal();
+        final int cinnamon = Spice.CINNAMON.ordinal();
+        final int nutmeg = Spice.NUTMEG.ordinal();
+        final int cardamom = Spice.CARDAMOM.ordinal();
+
+        if (stock[cravinho] < 10) {
+            prices[cravinho] += 10;
+        } else if (stock[cravinho] > 30) {
+            prices[cravinho] = Math.max(20, prices[cravinho] - 5);
+        }
+
+        if (stock[cinnamon] > 40) {
+            prices[cinnamon] = Math.max(3, prices[cinnamon] - 1);
+        } else if (stock[cinnamon] < 20) {
+            prices[cinnamon] += 2;
+        }
+
+        if (stock[nutmeg] < 15) {
+            prices[nutmeg] += 10;
+        } else if (stock[nutmeg] > 35) {
+            prices[nutmeg] = Math.max(10, prices[nutmeg] - 5);
+        }
+
+        if (stock[cardamom] < 10) {
+            prices[cardamom] += 5;
+        } else if (stock[cardamom] > 40) {
+            prices[cardamom] = Math.max(5, prices[cardamom] - 3);
+        }
+
+        if ("SULTAN_TAX".equals(eventType)) {
+            for (int i = 0; i < Spice.COUNT; i++) {
+                prices[i] = Math.max(1, (int) (prices[i] * 0.9));
+            }
+        } else if ("TRADE_ROUTE".equals(eventType) && eventTarget != null) {
+            prices[eventTarget.ordinal()] = (int) (prices[eventTarget.ordinal()] * 0.8);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package projectAgents;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.SimpleBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+// Waits for a number of replies in one conversation without blocking the agent thread.
+// Replies are taken from the conversation queue of the router, so other phases never consume them.
+// The behaviour finishes when all expected replies arrived or when the phase deadline passes.
+// Only the first reply of every sender counts, a repeated reply can not stand in for a missing one.
+// A reply that handleReply rejects, such as one that does not decode, counts as missing.
+public class ReplyBarrierBehaviour extends SimpleBehaviour {
+
+    private final ConversationRouter router;
+    private final Supplier<String> conversationIds;
+    private final MessageTemplate template;
+    private final IntSupplier expectedReplies;
+    private final long timeoutMillis;
+    private MarketMetrics.Phase phase;
+
+    private String conversationId;
+    private int expected;
+    private int received;
+    private final Set<AID> senders = new HashSet<>();
+    private long deadline;
+    private boolean timedOut;
+
+    public ReplyBarrierBehaviour(Agent agent, ConversationRouter router, Supplier<String> conversationIds,
+            MessageTemplate template, IntSupplier expectedReplies, long timeoutMillis) {
+        super(agent);
+        this.router = router;
+        this.conversationIds = conversationIds;
+        this.template = template;
+        this.expectedReplies = expectedReplies;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // Times the phase and remembers the merchant whose reply came last
+    public ReplyBarrierBehaviour measure(MarketMetrics.Phase phase) {
+        this.phase = phase;
+        return this;
+    }
+
+    @Override
+    public void onStart() {
+        if (phase != null) {
+            phase.start();
+        }
+        conversationId = conversationIds.get();
+        expected = expectedReplies.getAsInt();
+        received = 0;
+        senders.clear();
+        deadline = System.currentTimeMillis() + timeoutMillis;
+        timedOut = false;
+        router.open(conversationId, this);
+    }
+
+    @Override
+    public void action() {
+        ACLMessage reply = router.poll(conversationId, template);
+        while (reply != null) {
+            if (!senders.add(reply.getSender())) {
+                MarketLog.warn(myAgent.getLocalName() + " - ignored repeated reply in " + conversationId + " from "
+                        + reply.getSender().getLocalName());
+                reply = router.poll(conversationId, template);
+                continue;
+            }
+            received++;
+            if (phase != null) {
+                phase.reply(reply.getSender().getLocalName());
+            }
+            handleReply(reply);
+            if (received >= expected) {
+                return;
+            }
+            reply = router.poll(conversationId, template);
+        }
+
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            timedOut = true;
+            onTimeout(received, expected);
+            return;
+        }
+        block(remaining);
+    }
+
+    @Override
+    public boolean done() {
+        return received >= expected || timedOut;
+    }
+
+    @Override
+    public int onEnd() {
+        router.close(conversationId);
+        if (phase != null) {
+            phase.end();
+        }
+        return super.onEnd();
+    }
+
+    public String getConversationId() {
+        return conversationId;
+    }
+
+    public int getReceived() {
+        return received;
+    }
+
+    public boolean hasTimedOut() {
+        return timedOut;
+    }
+
+    // The expected senders that did not reply in this phase
+    public List<AID> missing(List<AID> expectedSenders) {
+        List<AID> missing = new ArrayList<>();
+        for (AID sender : expectedSenders) {
+            if (!senders.contains(sender)) {
+                missing.add(sender);
+            }
+        }
+        return missing;
+    }
+
+    // Called once for every reply that matches the template
+    protected void handleReply(ACLMessage reply) {
+    }
+
+    // Called by handleReply for a reply it can not use, the sender counts as missing and may still reply
+    protected void rejectReply(ACLMessage reply, String reason) {
+        MarketLog.warn(myAgent.getLocalName() + " - rejected reply in " + conversationId + " from "
+                + reply.getSender().getLocalName() + ": " + reason);
+        if (senders.remove(reply.getSender())) {
+            received--;
+        }
+    }
+
+    protected void rejectReply(ACLMessage reply, IllegalArgumentException malformed) {
+        rejectReply(reply, "malformed content, " + malformed.getMessage());
+    }
+
+    // Called when the deadline passes before all replies arrived
+    protected void onTimeout(int received, int expected) {
+        MarketLog.warn(myAgent.getLocalName() + " - " + conversationId + " timed out with " + received + "/"
+                + expected + " replies, moving on");
+    }
+}
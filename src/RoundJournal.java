@@ -0,0 +1,227 @@
+package projectAgents;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+// Append-only binary journal of the rounds played, read back with JournalReader.
+// The file is written through a memory-mapped segment that is preallocated ahead of the data,
+// so appending a round is a handful of stores into the mapping and never a write system call.
+//
+//   file header  int magic | byte version
+//   record       int length | byte type | body, where length counts the type and the body
+//   GAME         long seed | int total rounds | int count | count * double risk factor
+//                starts a game, the risk factors are only known (count > 0) for simulated games
+//   MERCHANTS    int count | count * (short bytes | UTF-8 name)      merchant ids of the game are the list index
+//   ROUND        int round | int[4] prices | int[4] stock | byte event | byte target | int count
+//                | count * (int merchant | int wallet delta | int[4] sold)
+//
+// The length of a record is written last and is always followed by a zero length, so a reader stops at
+// the first zero length and never sees a half written record. Closing trims the file to its data.
+public class RoundJournal implements Closeable {
+
+    static final int MAGIC = 0x534A524E;
+    static final byte VERSION = 1;
+    static final int FILE_HEADER_SIZE = 5;
+
+    static final byte MERCHANTS = 1;
+    static final byte ROUND = 2;
+    static final byte GAME = 3;
+
+    static final int ROUND_HEADER_SIZE = 4 + 4 * Spice.COUNT * 2 + 2 + 4;
+    static final int SALE_ENTRY_SIZE = 4 + 4 + 4 * Spice.COUNT;
+
+    private static final long SEGMENT_SIZE = Long.getLong("market.journal.segment", 64L << 20);
+
+    // One round of a game, reused for every round written or read
+    public static class Round {
+        public int round;
+        public final int[] prices = new int[Spice.COUNT];
+        public final int[] stock = new int[Spice.COUNT];
+        public String eventType;
+        public Spice eventTarget;
+
+        // Sale entries: merchant id, coins earned and the quantity sold of every spice
+        public int count;
+        public int[] merchants = new int[16];
+        public int[] walletDeltas = new int[16];
+        public int[] sold = new int[16 * Spice.COUNT];
+
+        public void clear() {
+            count = 0;
+        }
+
+        public void set(int round, int[] prices, int[] stock, String eventType, Spice eventTarget) {
+            this.round = round;
+            System.arraycopy(prices, 0, this.prices, 0, Spice.COUNT);
+            System.arraycopy(stock, 0, this.stock, 0, Spice.COUNT);
+            this.eventType = eventType;
+            this.eventTarget = eventTarget;
+        }
+
+        public void addSale(int merchant, MarketCodec.SaleDecision decision, int earned) {
+            int entry = addEntry(merchant, earned);
+            for (int i = 0; i < decision.count; i++) {
+                sold[entry * Spice.COUNT + decision.spices[i]] += decision.quantities[i];
+            }
+        }
+
+        public int soldQuantity(int entry, Spice spice) {
+            return sold[entry * Spice.COUNT + spice.ordinal()];
+        }
+
+        int addEntry(int merchant, int walletDelta) {
+            if (count == merchants.length) {
+                merchants = Arrays.copyOf(merchants, count * 2);
+                walletDeltas = Arrays.copyOf(walletDeltas, count * 2);
+                sold = Arrays.copyOf(sold, count * 2 * Spice.COUNT);
+            }
+            int entry = count++;
+            merchants[entry] = merchant;
+            walletDeltas[entry] = walletDelta;
+            Arrays.fill(sold, entry * Spice.COUNT, (entry + 1) * Spice.COUNT, 0);
+            return entry;
+        }
+
+        // Same round, field by field, used to check that a replay reproduced the recorded game
+        public boolean matches(Round other) {
+            if (round != other.round || count != other.count || !Arrays.equals(prices, other.prices)
+                    || !Arrays.equals(stock, other.stock) || eventTarget != other.eventTarget
+                    || !Objects.equals(eventType, other.eventType)) {
+                return false;
+            }
+            for (int entry = 0; entry < count; entry++) {
+                if (merchants[entry] != other.merchants[entry] || walletDeltas[entry] != other.walletDeltas[entry]) {
+                    return false;
+                }
+            }
+            return Arrays.equals(sold, 0, count * Spice.COUNT, other.sold, 0, count * Spice.COUNT);
+        }
+
+        int bodySize() {
+            return 1 + ROUND_HEADER_SIZE + count * SALE_ENTRY_SIZE;
+        }
+    }
+
+    private final FileChannel channel;
+    private MappedByteBuffer segment;
+    private long segmentStart;
+    private long position;
+
+    public RoundJournal(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (channel.size() == 0) {
+            map(0, FILE_HEADER_SIZE);
+            segment.putInt(MAGIC);
+            segment.put(VERSION);
+            position = FILE_HEADER_SIZE;
+        } else {
+            // Append after the last complete record of an existing journal
+            position = JournalReader.endOf(channel);
+        }
+    }
+
+    // Starts a game played with the given seed, riskFactors may be empty when they are not known
+    public void writeGame(long seed, int totalRounds, double[] riskFactors) throws IOException {
+        int size = 1 + 8 + 4 + 4 + 8 * riskFactors.length;
+        MappedByteBuffer buffer = reserve(size);
+        buffer.put(GAME);
+        buffer.putLong(seed);
+        buffer.putInt(totalRounds);
+        buffer.putInt(riskFactors.length);
+        for (double riskFactor : riskFactors) {
+            buffer.putDouble(riskFactor);
+        }
+        commit(size);
+    }
+
+    // Names the merchants of the current game, the merchant ids of the following rounds are indexes into names
+    public void writeMerchants(List<String> names) throws IOException {
+        byte[][] encoded = new byte[names.size()][];
+        int size = 1 + 4;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = names.get(i).getBytes(StandardCharsets.UTF_8);
+            size += 2 + encoded[i].length;
+        }
+        MappedByteBuffer buffer = reserve(size);
+        buffer.put(MERCHANTS);
+        buffer.putInt(encoded.length);
+        for (byte[] name : encoded) {
+            buffer.putShort((short) name.length);
+            buffer.put(name);
+        }
+        commit(size);
+    }
+
+    public void append(Round round) throws IOException {
+        int size = round.bodySize();
+        MappedByteBuffer buffer = reserve(size);
+        buffer.put(ROUND);
+        buffer.putInt(round.round);
+        for (int i = 0; i < Spice.COUNT; i++) {
+            buffer.putInt(round.prices[i]);
+        }
+        for (int i = 0; i < Spice.COUNT; i++) {
+            buffer.putInt(round.stock[i]);
+        }
+        buffer.put((byte) MarketCodec.eventIndex(round.eventType));
+        buffer.put((byte) MarketCodec.spiceIndex(round.eventTarget));
+        buffer.putInt(round.count);
+        for (int entry = 0; entry < round.count; entry++) {
+            buffer.putInt(round.merchants[entry]);
+            buffer.putInt(round.walletDeltas[entry]);
+            for (int i = 0; i < Spice.COUNT; i++) {
+                buffer.putInt(round.sold[entry * Spice.COUNT + i]);
+            }
+        }
+        commit(size);
+    }
+
+    public long size() {
+        return position;
+    }
+
+    // Positions the segment on the body of the next record, mapping a new segment when it does not fit
+    private MappedByteBuffer reserve(int bodySize) throws IOException {
+        long needed = 4 + bodySize + 4;
+        if (segment == null || position + needed > segmentStart + segment.capacity()) {
+            map(position, Math.max(SEGMENT_SIZE, needed));
+        }
+        segment.position((int) (position - segmentStart) + 4);
+        return segment;
+    }
+
+    // Publishes the record by writing its length once the body and the end marker are in place
+    private void commit(int bodySize) {
+        segment.putInt((int) (position - segmentStart) + 4 + bodySize, 0);
+        segment.putInt((int) (position - segmentStart), bodySize);
+        position += 4 + bodySize;
+    }
+
+    private void map(long start, long size) throws IOException {
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+        segmentStart = start;
+    }
+
+    public void force() {
+        if (segment != null) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        segment = null;
+        channel.truncate(position);
+        channel.close();
+    }
+}
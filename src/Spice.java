@@ -0,0 +1,56 @@
+package projectAgents;
+
+// Spices traded in the bazaar. Per-spice state is kept in arrays indexed by ordinal().
+public enum Spice {
+    CRAVINHO("Cravinho"),
+    CINNAMON("Cinnamon"),
+    NUTMEG("Nutmeg"),
+    CARDAMOM("Cardamom");
+
+    // values() clones the array on every call, so the hot paths iterate this one instead
+    public static final Spice[] VALUES = values();
+    public static final int COUNT = VALUES.length;
+
+    private final String displayName;
+
+    Spice(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    public static Spice fromIndex(int index) {
+        if (index < 0 || index >= COUNT) {
+            throw new IllegalArgumentException("Invalid spice index " + index);
+        }
+        return VALUES[index];
+    }
+
+    public static Spice fromName(String name) {
+        for (Spice spice : VALUES) {
+            if (spice.displayName.equalsIgnoreCase(name)) {
+                return spice;
+            }
+        }
+        throw new IllegalArgumentException("Unknown spice " + name);
+    }
+
+    // Formats a per-spice vector as {Cravinho=10, Cinnamon=15, ...} for logging
+    public static String format(int[] values) {
+        StringBuilder builder = new StringBuilder("{");
+        for (Spice spice : VALUES) {
+            if (spice.ordinal() > 0) {
+                builder.append(", ");
+            }
+            builder.append(spice.displayName).append('=').append(values[spice.ordinal()]);
+        }
+        return builder.append('}').toString();
+    }
+
+    @Override
+    public String toString() {
+        return displayName;
+    }
+}
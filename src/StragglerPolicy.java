@@ -0,0 +1,123 @@
+package projectAgents;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jade.core.AID;
+
+// Keeps one slow or crashed merchant from stalling the game.
+// Every phase that waits for the merchants ends at its deadline, a merchant that misses it gets the default
+// answer of the phase for that round: its last known stock, no order, HOLD. A merchant that misses a deadline in
+// evictAfter consecutive rounds is evicted, a round without misses clears its record.
+//
+// Deadlines are read from -Dmarket.deadline.<phase>=<ms> (phases: stock, prices, orders, sales and shards for the
+// coordinator), falling back to -Dmarket.deadline, and the eviction threshold from -Dmarket.evict.after (0 never
+// evicts).
+public class StragglerPolicy {
+
+    public static final long DEFAULT_DEADLINE_MS = 10000;
+    public static final int DEFAULT_EVICT_AFTER = 3;
+
+    private final int evictAfter;
+    private final Map<AID, Integer> strikes = new HashMap<>();
+    private final Set<AID> missedThisRound = new HashSet<>();
+
+    // Statistics of the game: missed replies per phase and evicted merchants
+    private final Map<String, Long> missedByPhase = new LinkedHashMap<>();
+    private final Map<String, MarketMetrics.Values> missedPerRound = new HashMap<>();
+    private final MarketMetrics.Values evictionsPerRound;
+    private final String agent;
+    private int evictions;
+
+    public StragglerPolicy(String agent) {
+        this(agent, Integer.getInteger("market.evict.after", DEFAULT_EVICT_AFTER));
+    }
+
+    public StragglerPolicy(String agent, int evictAfter) {
+        this.agent = agent;
+        this.evictAfter = evictAfter;
+        evictionsPerRound = MarketMetrics.values(agent, "evictionsPerRound");
+    }
+
+    public static long deadline(String phase) {
+        return Long.getLong("market.deadline." + phase, Long.getLong("market.deadline", DEFAULT_DEADLINE_MS));
+    }
+
+    // Registers the phase so it shows in the statistics even when nobody misses it
+    public void track(String phase) {
+        missedByPhase.putIfAbsent(phase, 0L);
+        missedPerRound.computeIfAbsent(phase, name -> MarketMetrics.values(agent, "missed." + name));
+    }
+
+    // Called at the end of every phase, with the merchants that did not reply in time
+    public void phaseEnded(String phase, List<AID> missed) {
+        track(phase);
+        missedPerRound.get(phase).record(missed.size());
+        if (missed.isEmpty()) {
+            return;
+        }
+        missedByPhase.merge(phase, (long) missed.size(), Long::sum);
+        missedThisRound.addAll(missed);
+        MarketLog.warn(agent + " - " + missed.size() + " merchants missed the " + phase + " deadline: "
+                + names(missed, 5));
+    }
+
+    // True when the merchant already missed a deadline this round
+    public boolean isLate(AID merchant) {
+        return missedThisRound.contains(merchant);
+    }
+
+    // Updates the strikes of the round's participants and returns the merchants to evict
+    public List<AID> roundEnded(List<AID> participants) {
+        List<AID> evicted = new ArrayList<>();
+        if (!missedThisRound.isEmpty() || !strikes.isEmpty()) {
+            for (AID participant : participants) {
+                if (!missedThisRound.contains(participant)) {
+                    strikes.remove(participant);
+                } else if (strikes.merge(participant, 1, Integer::sum) >= evictAfter && evictAfter > 0) {
+                    strikes.remove(participant);
+                    evicted.add(participant);
+                }
+            }
+            missedThisRound.clear();
+        }
+        evictions += evicted.size();
+        evictionsPerRound.record(evicted.size());
+        if (!evicted.isEmpty()) {
+            MarketLog.warn(agent + " - evicted " + evicted.size() + " merchants after " + evictAfter
+                    + " rounds of missed deadlines: " + names(evicted, 5));
+        }
+        return evicted;
+    }
+
+    public int getEvictions() {
+        return evictions;
+    }
+
+    public String summary() {
+        StringBuilder builder = new StringBuilder("missed replies");
+        for (Map.Entry<String, Long> entry : missedByPhase.entrySet()) {
+            builder.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return builder.append(", ").append(evictions).append(" merchants evicted").toString();
+    }
+
+    private static String names(List<AID> merchants, int limit) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < merchants.size() && i < limit; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(merchants.get(i).getLocalName());
+        }
+        if (merchants.size() > limit) {
+            builder.append(" and ").append(merchants.size() - limit).append(" more");
+        }
+        return builder.toString();
+    }
+}
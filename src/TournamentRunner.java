@@ -0,0 +1,354 @@
+package projectAgents;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Plays many independent, seeded games on a fork-join pool and aggregates the results.
+// For every merchant count the runner sweeps the risk factor grid: every combination of risk factors for the
+// merchants (0.1,0.1,0.5 is one, the order of the merchants is that of the grid) is a line-up that plays
+// games= games and gets its own results, per risk factor of the line-up. When a merchant count has more
+// combinations than lineups= (64 by default), a seeded sample of that many line-ups is played instead.
+//
+// java -classpath src/ projectAgents.TournamentRunner games=10000 risk=0.1,0.5,0.9 merchants=3,6,12 seed=42
+public class TournamentRunner {
+
+    private static final int GAMES_PER_TASK = 256;
+    private static final double Z_95 = 1.96;
+    public static final int DEFAULT_MAX_LINE_UPS = 64;
+
+    private final double[] riskGrid;
+    private final int[] merchantCounts;
+    private final int gamesPerConfiguration;
+    private final int maxLineUps;
+    private final long seed;
+    private final ForkJoinPool pool;
+
+    public TournamentRunner(double[] riskGrid, int[] merchantCounts, int gamesPerConfiguration, long seed,
+            int threads) {
+        this(riskGrid, merchantCounts, gamesPerConfiguration, DEFAULT_MAX_LINE_UPS, seed, threads);
+    }
+
+    public TournamentRunner(double[] riskGrid, int[] merchantCounts, int gamesPerConfiguration, int maxLineUps,
+            long seed, int threads) {
+        if (maxLineUps < 1) {
+            throw new IllegalArgumentException("A tournament needs at least one line-up, got " + maxLineUps);
+        }
+        this.riskGrid = Arrays.stream(riskGrid).sorted().distinct().toArray();
+        this.merchantCounts = merchantCounts;
+        this.gamesPerConfiguration = gamesPerConfiguration;
+        this.maxLineUps = maxLineUps;
+        this.seed = seed;
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    // Results of one line-up, per merchant slot
+    public static class Standings {
+        final double[] riskFactors;
+        final double[] wins;
+        final double[] coinSum;
+        final double[] coinSquares;
+        final long[] coinMin;
+        final long[] coinMax;
+        long games;
+
+        Standings(double[] riskFactors) {
+            int n = riskFactors.length;
+            this.riskFactors = riskFactors;
+            wins = new double[n];
+            coinSum = new double[n];
+            coinSquares = new double[n];
+            coinMin = new long[n];
+            coinMax = new long[n];
+            Arrays.fill(coinMin, Long.MAX_VALUE);
+            Arrays.fill(coinMax, Long.MIN_VALUE);
+        }
+
+        void record(long[] wallets) {
+            long best = Long.MIN_VALUE;
+            int tied = 0;
+            for (int i = 0; i < wallets.length; i++) {
+                long coins = wallets[i];
+                coinSum[i] += coins;
+                coinSquares[i] += (double) coins * coins;
+                coinMin[i] = Math.min(coinMin[i], coins);
+                coinMax[i] = Math.max(coinMax[i], coins);
+                if (coins > best) {
+                    best = coins;
+                    tied = 1;
+                } else if (coins == best) {
+                    tied++;
+                }
+            }
+            // A shared first place is split between the tied merchants
+            for (int i = 0; i < wallets.length; i++) {
+                if (wallets[i] == best) {
+                    wins[i] += 1.0 / tied;
+                }
+            }
+            games++;
+        }
+
+        Standings merge(Standings other) {
+            for (int i = 0; i < wins.length; i++) {
+                wins[i] += other.wins[i];
+                coinSum[i] += other.coinSum[i];
+                coinSquares[i] += other.coinSquares[i];
+                coinMin[i] = Math.min(coinMin[i], other.coinMin[i]);
+                coinMax[i] = Math.max(coinMax[i], other.coinMax[i]);
+            }
+            games += other.games;
+            return this;
+        }
+
+        public double winRate(int slot) {
+            return wins[slot] / games;
+        }
+
+        public double meanCoins(int slot) {
+            return coinSum[slot] / games;
+        }
+
+        public double coinStdDev(int slot) {
+            double mean = meanCoins(slot);
+            return Math.sqrt(Math.max(0, coinSquares[slot] / games - mean * mean));
+        }
+
+        public String lineUp() {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < riskFactors.length; i++) {
+                builder.append(i > 0 ? "," : "").append(riskFactors[i]);
+            }
+            return builder.toString();
+        }
+
+        // One row per risk factor of the line-up: the chance that one of its merchants wins, and the coins of
+        // one of its merchants
+        void print() {
+            System.out.println("  line-up " + lineUp());
+            System.out.println(String.format("  %6s %9s %8s %9s %10s %9s %8s %8s", "risk", "merchants", "win%",
+                    "+/-", "coins", "+/-", "min", "max"));
+            int from = 0;
+            while (from < riskFactors.length) {
+                int to = from;
+                double groupWins = 0;
+                double groupCoins = 0;
+                double groupSquares = 0;
+                long min = Long.MAX_VALUE;
+                long max = Long.MIN_VALUE;
+                while (to < riskFactors.length && riskFactors[to] == riskFactors[from]) {
+                    groupWins += wins[to];
+                    groupCoins += coinSum[to];
+                    groupSquares += coinSquares[to];
+                    min = Math.min(min, coinMin[to]);
+                    max = Math.max(max, coinMax[to]);
+                    to++;
+                }
+                long samples = games * (to - from);
+                // Shared wins are fractions, their sum may round just above one
+                double p = Math.min(1, groupWins / games);
+                double winMargin = Z_95 * Math.sqrt(p * (1 - p) / games);
+                double mean = groupCoins / samples;
+                double coinMargin = Z_95 * Math.sqrt(Math.max(0, groupSquares / samples - mean * mean))
+                        / Math.sqrt(samples);
+                System.out.println(String.format("  %6.2f %9d %7.2f%% %8.2f%% %10.1f %9.1f %8d %8d",
+                        riskFactors[from], to - from, p * 100, winMargin * 100, mean, coinMargin, min, max));
+                from = to;
+            }
+        }
+    }
+
+    // Plays the games [from, to) of one line-up, splitting the range until it is small enough
+    private class GamesTask extends RecursiveTask<Standings> {
+        private static final long serialVersionUID = 1L;
+
+        private final double[] lineUp;
+        private final long configurationSeed;
+        private final int from;
+        private final int to;
+
+        GamesTask(double[] lineUp, long configurationSeed, int from, int to) {
+            this.lineUp = lineUp;
+            this.configurationSeed = configurationSeed;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Standings compute() {
+            if (to - from <= GAMES_PER_TASK) {
+                Standings standings = new Standings(lineUp);
+                for (int game = from; game < to; game++) {
+                    MarketSimulation simulation = new MarketSimulation(lineUp, MarketEngine.TOTAL_ROUNDS,
+                            gameSeed(configurationSeed, game));
+                    simulation.run();
+                    standings.record(simulation.getWallets());
+                }
+                return standings;
+            }
+            int middle = (from + to) >>> 1;
+            GamesTask left = new GamesTask(lineUp, configurationSeed, from, middle);
+            left.fork();
+            Standings right = new GamesTask(lineUp, configurationSeed, middle, to).compute();
+            return left.join().merge(right);
+        }
+    }
+
+    // The seed of a game only depends on its index, so results do not depend on how the work was split
+    static long gameSeed(long configurationSeed, int game) {
+        return configurationSeed + game * 0x9E3779B97F4A7C15L;
+    }
+
+    // One Standings per line-up, in the order they were played
+    public List<Standings> run() {
+        List<Standings> results = new ArrayList<>();
+        for (int merchants : merchantCounts) {
+            List<double[]> lineUps = lineUps(merchants);
+            long combinations = combinations(riskGrid.length, merchants, maxLineUps);
+            System.out.println(merchants + " merchants, " + lineUps.size() + " line-ups"
+                    + (combinations > maxLineUps ? " sampled from more than " + maxLineUps : "") + ", "
+                    + gamesPerConfiguration + " games each");
+
+            long start = System.nanoTime();
+            long games = 0;
+            for (int i = 0; i < lineUps.size(); i++) {
+                long configurationSeed = (seed * 31 + merchants) * 31 + i;
+                Standings standings = pool.invoke(new GamesTask(lineUps.get(i), configurationSeed, 0,
+                        gamesPerConfiguration));
+                standings.print();
+                results.add(standings);
+                games += standings.games;
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(merchants + " merchants, " + games + " games in " + String.format("%.2f", seconds)
+                    + "s (" + String.format("%.0f", games / seconds) + " games/s on " + pool.getParallelism()
+                    + " threads)");
+        }
+        return results;
+    }
+
+    // Every combination of risk factors for the merchants, risk factors in grid order, or a seeded sample of
+    // maxLineUps distinct combinations when there are more
+    List<double[]> lineUps(int merchants) {
+        List<double[]> lineUps = new ArrayList<>();
+        int[] choice = new int[merchants];
+        if (combinations(riskGrid.length, merchants, maxLineUps) <= maxLineUps) {
+            while (true) {
+                lineUps.add(lineUp(choice));
+                // Next non-decreasing choice of grid indices
+                int i = merchants - 1;
+                while (i >= 0 && choice[i] == riskGrid.length - 1) {
+                    i--;
+                }
+                if (i < 0) {
+                    return lineUps;
+                }
+                choice[i]++;
+                Arrays.fill(choice, i + 1, merchants, choice[i]);
+            }
+        }
+        SplittableRandom random = new SplittableRandom(seed * 31 + merchants);
+        Map<String, double[]> sample = new LinkedHashMap<>();
+        while (sample.size() < maxLineUps) {
+            for (int i = 0; i < merchants; i++) {
+                choice[i] = random.nextInt(riskGrid.length);
+            }
+            Arrays.sort(choice);
+            sample.putIfAbsent(Arrays.toString(choice), lineUp(choice));
+        }
+        lineUps.addAll(sample.values());
+        return lineUps;
+    }
+
+    private double[] lineUp(int[] choice) {
+        double[] lineUp = new double[choice.length];
+        for (int i = 0; i < choice.length; i++) {
+            lineUp[i] = riskGrid[choice[i]];
+        }
+        return lineUp;
+    }
+
+    // Number of ways to give each of the merchants one of the risk factors, ignoring their order, counted
+    // up to just above limit
+    static long combinations(int riskFactors, int merchants, long limit) {
+        // C(riskFactors + merchants - 1, merchants), each partial product is itself a binomial coefficient
+        long count = 1;
+        for (int i = 1; i <= merchants; i++) {
+            count = count * (riskFactors - 1 + i) / i;
+            if (count > limit) {
+                return limit + 1;
+            }
+        }
+        return count;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    public static void main(String[] args) {
+        int games = 10000;
+        double[] risk = { 0.1, 0.5, 0.9 };
+        int[] merchants = { 3 };
+        int lineUps = DEFAULT_MAX_LINE_UPS;
+        long seed = 42;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2) {
+                System.err.println("Ignoring argument " + arg + ", expected key=value");
+                continue;
+            }
+            switch (option[0]) {
+                case "games":
+                    games = Integer.parseInt(option[1]);
+                    break;
+                case "risk":
+                    risk = parseDoubles(option[1]);
+                    break;
+                case "merchants":
+                    merchants = parseInts(option[1]);
+                    break;
+                case "lineups":
+                    lineUps = Integer.parseInt(option[1]);
+                    break;
+                case "seed":
+                    seed = Long.parseLong(option[1]);
+                    break;
+                case "threads":
+                    threads = Integer.parseInt(option[1]);
+                    break;
+                default:
+                    System.err.println("Ignoring unknown option " + option[0]);
+            }
+        }
+
+        TournamentRunner runner = new TournamentRunner(risk, merchants, games, lineUps, seed, threads);
+        runner.run();
+        runner.shutdown();
+    }
+
+    private static double[] parseDoubles(String list) {
+        String[] parts = list.split(",");
+        double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Double.parseDouble(parts[i].trim());
+        }
+        return values;
+    }
+
+    private static int[] parseInts(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+}